@@ -0,0 +1,165 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.thrift.ThriftTestUtils;
+
+import javax.inject.Provider;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Connections for the benchmarks to run against. The <code>stub</code> backend is an in-process stand-in whose
+ * connections, statements and result sets do nothing, so that benchmarks measure the driver rather than a database.
+ * The stand-ins are dynamic proxies, so their own cost is part of every measurement; compare a decorated benchmark with
+ * its raw counterpart to get the decorator's overhead. The <code>postgres</code> backend connects to a local
+ * PostgreSQL given by the system properties <code>ezpostgres.url</code> (a plain <code>jdbc:postgresql:</code> URL),
+ * <code>ezpostgres.user</code> and <code>ezpostgres.password</code>.
+ */
+final class BenchmarkConnections {
+
+    /** Backend with no database behind it */
+    public static final String STUB_BACKEND = "stub";
+
+    /** Backend that connects to a local PostgreSQL */
+    public static final String POSTGRES_BACKEND = "postgres";
+
+    private BenchmarkConnections() {
+    }
+
+    /**
+     * @param authorizations authorizations the token carries
+     * @return a test token
+     */
+    public static EzSecurityToken token(String... authorizations) {
+        return ThriftTestUtils.generateTestSecurityToken("benchmark", "benchmark", Arrays.asList(authorizations));
+    }
+
+    /**
+     * @param token token to provide
+     * @return a provider that always provides the token, without a security client
+     */
+    public static Provider<EzSecurityToken> provider(final EzSecurityToken token) {
+        return new Provider<EzSecurityToken>() {
+            @Override
+            public EzSecurityToken get() {
+                return token;
+            }
+        };
+    }
+
+    /**
+     * Open a real (undecorated) connection to a backend.
+     *
+     * @param backend {@link #STUB_BACKEND} or {@link #POSTGRES_BACKEND}
+     * @return a connection
+     * @throws SQLException if the connection could not be opened
+     */
+    public static Connection open(String backend) throws SQLException {
+        if (STUB_BACKEND.equals(backend)) {
+            return stub(Connection.class);
+        } else if (POSTGRES_BACKEND.equals(backend)) {
+            Properties properties = new Properties();
+            properties.setProperty("user", System.getProperty("ezpostgres.user", "postgres"));
+            properties.setProperty("password", System.getProperty("ezpostgres.password", ""));
+
+            return new org.postgresql.Driver().connect(
+                    System.getProperty("ezpostgres.url", "jdbc:postgresql://localhost:5432/postgres"), properties);
+        }
+
+        throw new IllegalArgumentException("Unknown backend " + backend);
+    }
+
+    /**
+     * Decorate a real connection the way {@link EzPostgresDriver} does.
+     *
+     * @param connection real connection
+     * @param provider token provider
+     * @param properties JDBC connection properties
+     * @return decorated connection
+     */
+    public static ConnectionDecorator decorate(Connection connection, Provider<EzSecurityToken> provider,
+            Properties properties) {
+        return new ConnectionDecorator(connection, provider, properties);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, StubHandler.INSTANCE);
+    }
+
+    /**
+     * Answers every JDBC call with another stand-in or a default value.
+     */
+    private static class StubHandler implements InvocationHandler {
+        static final StubHandler INSTANCE = new StubHandler();
+
+        private static final Statement STATEMENT = stub(Statement.class);
+        private static final PreparedStatement PREPARED_STATEMENT = stub(PreparedStatement.class);
+        private static final CallableStatement CALLABLE_STATEMENT = stub(CallableStatement.class);
+        private static final ResultSet RESULT_SET = stub(ResultSet.class);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("createStatement")) {
+                return STATEMENT;
+            } else if (name.equals("prepareStatement")) {
+                return PREPARED_STATEMENT;
+            } else if (name.equals("prepareCall")) {
+                return CALLABLE_STATEMENT;
+            } else if (name.equals("executeQuery") || name.equals("getResultSet")) {
+                return RESULT_SET;
+            } else if (name.equals("getAutoCommit")) {
+                return true;
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("toString")) {
+                return "stub " + method.getDeclaringClass().getSimpleName();
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == long.class) {
+                return 0L;
+            } else if (returnType == short.class) {
+                return (short) 0;
+            } else if (returnType == byte.class) {
+                return (byte) 0;
+            } else if (returnType == double.class) {
+                return 0.0;
+            } else if (returnType == float.class) {
+                return 0.0f;
+            }
+
+            return null;
+        }
+    }
+}
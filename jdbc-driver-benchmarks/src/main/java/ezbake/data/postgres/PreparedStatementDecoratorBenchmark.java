@@ -0,0 +1,111 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of {@link PreparedStatementDecorator} and {@link CallableStatementDecorator} against the raw
+ * statements they wrap, for binding parameters alone and for binding and executing with an unchanged token.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreparedStatementDecoratorBenchmark {
+
+    private static final String SQL = "select ?::varchar, ?::int";
+
+    private static final String CALL = "{call concat(?, ?)}";
+
+    @Param({BenchmarkConnections.STUB_BACKEND})
+    public String backend;
+
+    private Connection rawConnection;
+    private PreparedStatement rawPrepared;
+    private PreparedStatement decoratedPrepared;
+    private CallableStatement rawCallable;
+    private CallableStatement decoratedCallable;
+
+    @Setup
+    public void setUp() throws SQLException {
+        rawConnection = BenchmarkConnections.open(backend);
+        ConnectionDecorator connection = BenchmarkConnections.decorate(rawConnection,
+                BenchmarkConnections.provider(BenchmarkConnections.token("U")), new Properties());
+
+        rawPrepared = rawConnection.prepareStatement(SQL);
+        decoratedPrepared = connection.prepareStatement(SQL);
+        rawCallable = rawConnection.prepareCall(CALL);
+        decoratedCallable = connection.prepareCall(CALL);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        rawConnection.close();
+    }
+
+    @Benchmark
+    public void rawSetParameters() throws SQLException {
+        rawPrepared.setString(1, "value");
+        rawPrepared.setInt(2, 1);
+    }
+
+    @Benchmark
+    public void decoratedSetParameters() throws SQLException {
+        decoratedPrepared.setString(1, "value");
+        decoratedPrepared.setInt(2, 1);
+    }
+
+    @Benchmark
+    public ResultSet rawExecuteQuery() throws SQLException {
+        rawPrepared.setString(1, "value");
+        rawPrepared.setInt(2, 1);
+        return rawPrepared.executeQuery();
+    }
+
+    @Benchmark
+    public ResultSet decoratedExecuteQuery() throws SQLException {
+        decoratedPrepared.setString(1, "value");
+        decoratedPrepared.setInt(2, 1);
+        return decoratedPrepared.executeQuery();
+    }
+
+    @Benchmark
+    public void rawCallableSetParameters() throws SQLException {
+        rawCallable.setString(1, "a");
+        rawCallable.setString(2, "b");
+    }
+
+    @Benchmark
+    public void decoratedCallableSetParameters() throws SQLException {
+        decoratedCallable.setString(1, "a");
+        decoratedCallable.setString(2, "b");
+    }
+}
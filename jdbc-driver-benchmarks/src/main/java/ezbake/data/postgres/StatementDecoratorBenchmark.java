@@ -0,0 +1,103 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.inject.Provider;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-statement overhead of {@link StatementDecorator} against the raw statement it wraps: when the
+ * session already carries the token (the set is elided), and when every statement changes the token (the set is
+ * issued).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StatementDecoratorBenchmark {
+
+    private static final String SQL = "select 1";
+
+    @Param({BenchmarkConnections.STUB_BACKEND})
+    public String backend;
+
+    @Param({"false", "true"})
+    public String piggyback;
+
+    private Connection rawConnection;
+    private Statement rawStatement;
+    private Statement sameTokenStatement;
+    private Statement changingTokenStatement;
+
+    @Setup
+    public void setUp() throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty(EzPostgresDriver.EZBAKE_TOKEN_PIGGYBACK_PROPERTY, piggyback);
+
+        rawConnection = BenchmarkConnections.open(backend);
+        rawStatement = rawConnection.createStatement();
+
+        Provider<EzSecurityToken> provider = BenchmarkConnections.provider(BenchmarkConnections.token("U"));
+        sameTokenStatement = BenchmarkConnections.decorate(rawConnection, provider, properties).createStatement();
+
+        final EzSecurityToken[] tokens = {BenchmarkConnections.token("U"), BenchmarkConnections.token("U", "S")};
+        Provider<EzSecurityToken> changingProvider = new Provider<EzSecurityToken>() {
+            private int next;
+
+            @Override
+            public EzSecurityToken get() {
+                next ^= 1;
+                return tokens[next];
+            }
+        };
+        changingTokenStatement = BenchmarkConnections.decorate(rawConnection, changingProvider, properties)
+                .createStatement();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        rawConnection.close();
+    }
+
+    @Benchmark
+    public ResultSet raw() throws SQLException {
+        return rawStatement.executeQuery(SQL);
+    }
+
+    @Benchmark
+    public ResultSet decoratedSameToken() throws SQLException {
+        return sameTokenStatement.executeQuery(SQL);
+    }
+
+    @Benchmark
+    public ResultSet decoratedChangingToken() throws SQLException {
+        return changingTokenStatement.executeQuery(SQL);
+    }
+}
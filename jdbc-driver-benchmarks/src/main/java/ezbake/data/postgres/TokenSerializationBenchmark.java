@@ -0,0 +1,60 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.thrift.ThriftUtils;
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what setting a changed token costs the driver before anything is sent: copying the token, and serializing
+ * it to the base64 string that the property is set to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenSerializationBenchmark {
+
+    private EzSecurityToken token;
+
+    @Setup
+    public void setUp() {
+        token = BenchmarkConnections.token("U", "S", "TS");
+    }
+
+    @Benchmark
+    public String serializeToBase64() throws TException {
+        return ThriftUtils.serializeToBase64(token);
+    }
+
+    @Benchmark
+    public EzSecurityToken copy() {
+        return new EzSecurityToken(token);
+    }
+
+    @Benchmark
+    public boolean compare() {
+        return token.equals(new EzSecurityToken(token));
+    }
+}
@@ -0,0 +1,67 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.jfr;
+
+import ezbake.data.postgres.EzPostgresTracer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * An EzPostgres connection being opened, with the time spent in each phase of
+ * {@link ezbake.data.postgres.EzPostgresDriver#connect(String, java.util.Properties)}.
+ */
+@Name(ConnectEvent.NAME)
+@Label("Connect")
+@Category({"EzBake", "PostgreSQL"})
+@Description("Opening a connection through the EzPostgres driver")
+@Threshold("20 ms")
+public final class ConnectEvent extends DriverEvent {
+
+    /** Name of the event type */
+    public static final String NAME = "ezbake.postgres.Connect";
+
+    @Label("Parse URL")
+    @Timespan
+    long parseUrlDuration;
+
+    @Label("Create Token Provider")
+    @Timespan
+    long tokenProviderDuration;
+
+    @Label("Real Connect")
+    @Timespan
+    long realConnectDuration;
+
+    @Label("Decorate")
+    @Timespan
+    long decorateDuration;
+
+    @Override
+    void set(String name, long value) {
+        if (EzPostgresTracer.PARSE_URL_NANOS_ATTRIBUTE.equals(name)) {
+            parseUrlDuration = value;
+        } else if (EzPostgresTracer.TOKEN_PROVIDER_NANOS_ATTRIBUTE.equals(name)) {
+            tokenProviderDuration = value;
+        } else if (EzPostgresTracer.REAL_CONNECT_NANOS_ATTRIBUTE.equals(name)) {
+            realConnectDuration = value;
+        } else if (EzPostgresTracer.DECORATE_NANOS_ATTRIBUTE.equals(name)) {
+            decorateDuration = value;
+        }
+    }
+}
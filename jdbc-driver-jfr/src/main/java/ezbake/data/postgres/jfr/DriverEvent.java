@@ -0,0 +1,60 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.jfr;
+
+import ezbake.data.postgres.EzPostgresTracer;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base of the driver's events. Span attributes that an event has a field for are copied into it; others are ignored.
+ */
+abstract class DriverEvent extends Event {
+
+    @Label("Security ID")
+    String securityId;
+
+    @Label("Principal")
+    String principal;
+
+    @Label("Error")
+    String error;
+
+    /**
+     * @param name attribute name
+     * @param value attribute value
+     */
+    void set(String name, String value) {
+        if (EzPostgresTracer.SECURITY_ID_ATTRIBUTE.equals(name)) {
+            securityId = value;
+        } else if (EzPostgresTracer.PRINCIPAL_ATTRIBUTE.equals(name)) {
+            principal = value;
+        }
+    }
+
+    /**
+     * @param name attribute name
+     * @param value attribute value
+     */
+    void set(String name, long value) {
+    }
+
+    /**
+     * @param name attribute name
+     * @param value attribute value
+     */
+    void set(String name, boolean value) {
+    }
+}
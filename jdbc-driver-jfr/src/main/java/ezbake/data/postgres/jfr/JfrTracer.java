@@ -0,0 +1,104 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.jfr;
+
+import ezbake.data.postgres.EzPostgresTracer;
+import jdk.jfr.EventType;
+
+/**
+ * Records the EzPostgres JDBC driver's work as Java Flight Recorder events: {@link ConnectEvent},
+ * {@link TokenFetchEvent}, {@link TokenSetEvent} and {@link StatementExecuteEvent}. The events are enabled and
+ * thresholded with the usual JFR settings under their names, so a continuous recording shows driver stalls alongside
+ * GC and I/O. An operation whose event isn't enabled in any running recording costs the driver nothing more than
+ * checking that.
+ * <p />
+ * Having this module on the class path is enough for the driver to use it. Only one tracer is used, so to also trace
+ * with another tracer, install one that delegates to both with {@link EzPostgresTracer#setInstance(EzPostgresTracer)}.
+ */
+public class JfrTracer extends EzPostgresTracer {
+
+    private final EventType[] eventTypes = new EventType[Operation.values().length];
+
+    /**
+     * Create a tracer, registering the driver's event types.
+     */
+    public JfrTracer() {
+        for (Operation operation : Operation.values()) {
+            eventTypes[operation.ordinal()] = EventType.getEventType(createEvent(operation).getClass());
+        }
+    }
+
+    @Override
+    public boolean isSampled(Operation operation) {
+        return eventTypes[operation.ordinal()].isEnabled();
+    }
+
+    @Override
+    public Span startSpan(Operation operation) {
+        return new EventSpan(createEvent(operation));
+    }
+
+    private static DriverEvent createEvent(Operation operation) {
+        switch (operation) {
+            case CONNECT:
+                return new ConnectEvent();
+            case TOKEN_FETCH:
+                return new TokenFetchEvent();
+            case TOKEN_SET:
+                return new TokenSetEvent();
+            case EXECUTE:
+                return new StatementExecuteEvent();
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * A span that times an event and commits it when ended. The event is only written if it passes its threshold.
+     */
+    private static class EventSpan extends Span {
+        private final DriverEvent event;
+
+        EventSpan(DriverEvent event) {
+            this.event = event;
+            event.begin();
+        }
+
+        @Override
+        public void setAttribute(String name, String value) {
+            event.set(name, value);
+        }
+
+        @Override
+        public void setAttribute(String name, long value) {
+            event.set(name, value);
+        }
+
+        @Override
+        public void setAttribute(String name, boolean value) {
+            event.set(name, value);
+        }
+
+        @Override
+        public void recordError(Throwable error) {
+            event.error = error.toString();
+        }
+
+        @Override
+        public void end() {
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.jfr;
+
+import ezbake.data.postgres.EzPostgresTracer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A statement being executed through an EzPostgres connection.
+ */
+@Name(StatementExecuteEvent.NAME)
+@Label("Statement Execute")
+@Category({"EzBake", "PostgreSQL"})
+@Description("Executing a statement, including setting the security token")
+@Threshold("20 ms")
+public final class StatementExecuteEvent extends DriverEvent {
+
+    /** Name of the event type */
+    public static final String NAME = "ezbake.postgres.StatementExecute";
+
+    @Label("Fingerprint")
+    @Description("The statement's SQL with literals replaced by placeholders")
+    String fingerprint;
+
+    @Label("Rows")
+    @Description("Rows updated, or -1 if unknown")
+    long rows = -1;
+
+    @Override
+    void set(String name, String value) {
+        if (EzPostgresTracer.FINGERPRINT_ATTRIBUTE.equals(name)) {
+            fingerprint = value;
+        } else {
+            super.set(name, value);
+        }
+    }
+
+    @Override
+    void set(String name, long value) {
+        if (EzPostgresTracer.ROWS_ATTRIBUTE.equals(name)) {
+            rows = value;
+        }
+    }
+}
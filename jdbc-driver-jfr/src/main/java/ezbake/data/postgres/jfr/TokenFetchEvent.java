@@ -0,0 +1,59 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.jfr;
+
+import ezbake.data.postgres.EzPostgresTracer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A security token being fetched from a connection's token provider.
+ */
+@Name(TokenFetchEvent.NAME)
+@Label("Token Fetch")
+@Category({"EzBake", "PostgreSQL"})
+@Description("Fetching the security token from the token provider")
+@Threshold("20 ms")
+public final class TokenFetchEvent extends DriverEvent {
+
+    /** Name of the event type */
+    public static final String NAME = "ezbake.postgres.TokenFetch";
+
+    @Label("Provider Class")
+    String providerClass;
+
+    @Label("Already Carried")
+    @Description("The token is the one the session already carries")
+    boolean carried;
+
+    @Override
+    void set(String name, String value) {
+        if (EzPostgresTracer.PROVIDER_ATTRIBUTE.equals(name)) {
+            providerClass = value;
+        } else {
+            super.set(name, value);
+        }
+    }
+
+    @Override
+    void set(String name, boolean value) {
+        if (EzPostgresTracer.CARRIED_ATTRIBUTE.equals(name)) {
+            carried = value;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.jfr;
+
+import ezbake.data.postgres.EzPostgresTracer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The security token property being set on a session, or being skipped because the session already carries it.
+ */
+@Name(TokenSetEvent.NAME)
+@Label("Token Set")
+@Category({"EzBake", "PostgreSQL"})
+@Description("Setting the security token property on the session")
+@Threshold("20 ms")
+public final class TokenSetEvent extends DriverEvent {
+
+    /** Name of the event type */
+    public static final String NAME = "ezbake.postgres.TokenSet";
+
+    @Label("Bytes")
+    @Description("Size of the token or token handle sent")
+    @DataAmount
+    long bytes;
+
+    @Label("Elided")
+    @Description("The set was skipped because the session already carries the token")
+    boolean elided;
+
+    @Override
+    void set(String name, long value) {
+        if (EzPostgresTracer.BYTES_ATTRIBUTE.equals(name)) {
+            bytes = value;
+        }
+    }
+
+    @Override
+    void set(String name, boolean value) {
+        if (EzPostgresTracer.ELIDED_ATTRIBUTE.equals(name)) {
+            elided = value;
+        }
+    }
+}
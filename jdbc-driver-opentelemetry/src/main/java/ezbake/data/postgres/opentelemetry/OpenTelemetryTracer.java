@@ -0,0 +1,102 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.opentelemetry;
+
+import ezbake.data.postgres.EzPostgresTracer;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+
+/**
+ * Traces the EzPostgres JDBC driver with OpenTelemetry. Operations are traced only within a sampled span, so that the
+ * driver's spans follow the sampling decision of the request they are part of, and statements executed outside any
+ * trace cost nothing. Spans are client spans named after {@link EzPostgresTracer.Operation#getSpanName()}.
+ * <p />
+ * Having this module on the class path is enough for the driver to use it, with the tracer of
+ * {@link GlobalOpenTelemetry}. To use another tracer, install an instance with
+ * {@link EzPostgresTracer#setInstance(EzPostgresTracer)}.
+ */
+public class OpenTelemetryTracer extends EzPostgresTracer {
+
+    /** Instrumentation scope name of the driver's spans */
+    public static final String INSTRUMENTATION_NAME = "ezbake.data.postgres";
+
+    private final Tracer tracer;
+
+    /**
+     * Create a tracer that uses the global OpenTelemetry instance.
+     */
+    public OpenTelemetryTracer() {
+        this(GlobalOpenTelemetry.getTracer(INSTRUMENTATION_NAME));
+    }
+
+    /**
+     * @param tracer OpenTelemetry tracer to create spans with
+     */
+    public OpenTelemetryTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public boolean isSampled(Operation operation) {
+        return io.opentelemetry.api.trace.Span.current().getSpanContext().isSampled();
+    }
+
+    @Override
+    public Span startSpan(Operation operation) {
+        return new OpenTelemetrySpan(tracer.spanBuilder(operation.getSpanName())
+                .setSpanKind(SpanKind.CLIENT)
+                .setAttribute("db.system", "postgresql")
+                .startSpan());
+    }
+
+    /**
+     * Adapts an OpenTelemetry span. Its name is qualified because it is hidden by the inherited {@link Span}.
+     */
+    private static class OpenTelemetrySpan extends Span {
+        private final io.opentelemetry.api.trace.Span span;
+
+        OpenTelemetrySpan(io.opentelemetry.api.trace.Span span) {
+            this.span = span;
+        }
+
+        @Override
+        public void setAttribute(String name, String value) {
+            span.setAttribute(name, value);
+        }
+
+        @Override
+        public void setAttribute(String name, long value) {
+            span.setAttribute(name, value);
+        }
+
+        @Override
+        public void setAttribute(String name, boolean value) {
+            span.setAttribute(name, value);
+        }
+
+        @Override
+        public void recordError(Throwable error) {
+            span.recordException(error);
+            span.setStatus(StatusCode.ERROR);
+        }
+
+        @Override
+        public void end() {
+            span.end();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.EzSecurityPrincipal;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.EzSecurityTokenException;
+import ezbake.base.thrift.TokenType;
+import ezbake.base.thrift.ValidityCaveats;
+import ezbake.security.client.EzbakeSecurityClient;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the EzBake security service, for load testing and for running tests on a machine without
+ * one. It mints unsigned test tokens itself and can be made to behave like a remote service with configurable latency,
+ * error rate and token lifetime. Select it by setting the connection property <code>ezbakeSecurityClient</code> to
+ * <code>ezbake.data.postgres.LocalSecurityClient</code>.
+ * <p />
+ * It is configured by these properties:
+ * <ul>
+ *     <li><code>ezbake.local.security.user</code> - principal of user tokens (default <code>CN=Local User</code>)</li>
+ *     <li><code>ezbake.local.security.authorizations</code> - comma separated authorizations of every token (default
+ *     <code>U</code>)</li>
+ *     <li><code>ezbake.local.security.token.lifetime.millis</code> - lifetime of minted tokens (default one hour)</li>
+ *     <li><code>ezbake.local.security.fetch.latency.millis</code> - delay of each fetch (default 0)</li>
+ *     <li><code>ezbake.local.security.validate.latency.millis</code> - delay of each validation (default 0)</li>
+ *     <li><code>ezbake.local.security.error.rate</code> - fraction of calls that fail (default 0)</li>
+ * </ul>
+ * Tokens are issued to the application named by <code>ezbake.security.app.id</code>. Validation only checks that a
+ * token hasn't expired.
+ * <p />
+ * <b>Never use this client in production.</b> It grants any authorizations it is configured with and accepts tokens
+ * nobody signed, so it would give every connection whatever access the configuration asks for. It is therefore only
+ * shipped in the test support artifact, which the driver's tests and the benchmarks depend on, not with the driver.
+ */
+public class LocalSecurityClient extends EzbakeSecurityClient {
+
+    public static final String USER_PROPERTY = "ezbake.local.security.user";
+    public static final String AUTHORIZATIONS_PROPERTY = "ezbake.local.security.authorizations";
+    public static final String TOKEN_LIFETIME_PROPERTY = "ezbake.local.security.token.lifetime.millis";
+    public static final String FETCH_LATENCY_PROPERTY = "ezbake.local.security.fetch.latency.millis";
+    public static final String VALIDATE_LATENCY_PROPERTY = "ezbake.local.security.validate.latency.millis";
+    public static final String ERROR_RATE_PROPERTY = "ezbake.local.security.error.rate";
+
+    private static final String APP_ID_PROPERTY = "ezbake.security.app.id";
+
+    private final String appId;
+    private final String user;
+    private final TreeSet<String> authorizations;
+    private final long tokenLifetimeMillis;
+    private final long fetchLatencyMillis;
+    private final long validateLatencyMillis;
+    private final double errorRate;
+    private final Random random = new Random();
+
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong validations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Create a local security client. The real client it extends is always put in mock mode, so it never contacts
+     * the security service either.
+     *
+     * @param properties configuration properties
+     */
+    public LocalSecurityClient(Properties properties) {
+        super(mockProperties(properties));
+
+        this.appId = properties.getProperty(APP_ID_PROPERTY, "local");
+        this.user = properties.getProperty(USER_PROPERTY, "CN=Local User");
+        this.authorizations = new TreeSet<String>(
+                Arrays.asList(properties.getProperty(AUTHORIZATIONS_PROPERTY, "U").split("\\s*,\\s*")));
+        this.tokenLifetimeMillis = Long.parseLong(
+                properties.getProperty(TOKEN_LIFETIME_PROPERTY, Long.toString(TimeUnit.HOURS.toMillis(1))));
+        this.fetchLatencyMillis = Long.parseLong(properties.getProperty(FETCH_LATENCY_PROPERTY, "0"));
+        this.validateLatencyMillis = Long.parseLong(properties.getProperty(VALIDATE_LATENCY_PROPERTY, "0"));
+        this.errorRate = Double.parseDouble(properties.getProperty(ERROR_RATE_PROPERTY, "0"));
+    }
+
+    @Override
+    public EzSecurityToken fetchAppToken() throws EzSecurityTokenException {
+        fetches.incrementAndGet();
+        simulateCall(fetchLatencyMillis);
+
+        return mint(TokenType.APP, appId);
+    }
+
+    @Override
+    public EzSecurityToken fetchTokenForProxiedUser() throws EzSecurityTokenException {
+        fetches.incrementAndGet();
+        simulateCall(fetchLatencyMillis);
+
+        return mint(TokenType.USER, user);
+    }
+
+    @Override
+    public void validateReceivedToken(EzSecurityToken token) throws EzSecurityTokenException {
+        validations.incrementAndGet();
+        simulateCall(validateLatencyMillis);
+
+        if (token.getValidity() == null || token.getValidity().getNotAfter() < System.currentTimeMillis()) {
+            throw new EzSecurityTokenException("Token has expired");
+        }
+    }
+
+    /**
+     * @return number of tokens fetched
+     */
+    public long getFetches() {
+        return fetches.get();
+    }
+
+    /**
+     * @return number of tokens validated
+     */
+    public long getValidations() {
+        return validations.get();
+    }
+
+    /**
+     * @return number of calls that were made to fail
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private EzSecurityToken mint(TokenType type, String principal) {
+        long now = System.currentTimeMillis();
+
+        EzSecurityToken token = new EzSecurityToken();
+        token.setType(type);
+        token.setValidity(validity(now));
+        token.setTokenPrincipal(new EzSecurityPrincipal()
+                .setPrincipal(principal)
+                .setName(principal)
+                .setValidity(validity(now)));
+        token.setAuthorizations(new Authorizations().setFormalAuthorizations(new TreeSet<String>(authorizations)));
+
+        return token;
+    }
+
+    private ValidityCaveats validity(long issuedTime) {
+        return new ValidityCaveats()
+                .setIssuer(LocalSecurityClient.class.getSimpleName())
+                .setIssuedTo(appId)
+                .setIssuedFor(appId)
+                .setIssuedTime(issuedTime)
+                .setNotBefore(issuedTime)
+                .setNotAfter(issuedTime + tokenLifetimeMillis)
+                .setSignature("");
+    }
+
+    /**
+     * Wait out the configured latency, then fail at the configured error rate.
+     *
+     * @param latencyMillis how long the call takes
+     * @throws EzSecurityTokenException if the call is made to fail or is interrupted
+     */
+    private void simulateCall(long latencyMillis) throws EzSecurityTokenException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EzSecurityTokenException("Interrupted while waiting for the security service");
+            }
+        }
+
+        boolean fail;
+        synchronized (random) {
+            fail = errorRate > 0 && random.nextDouble() < errorRate;
+        }
+
+        if (fail) {
+            errors.incrementAndGet();
+            throw new EzSecurityTokenException("Simulated security service failure");
+        }
+    }
+
+    private static Properties mockProperties(Properties properties) {
+        Properties mockProperties = (Properties) properties.clone();
+        mockProperties.setProperty("ezbake.security.client.use.mock", "true");
+        mockProperties.setProperty("ezbake.security.client.mode", "MOCK");
+
+        return mockProperties;
+    }
+}
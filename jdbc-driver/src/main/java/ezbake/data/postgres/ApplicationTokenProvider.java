@@ -21,14 +21,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Provider;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A token provider that provides app tokens from a security client. Calls
- * {@link ezbake.security.common.core.EzSecurityClient#fetchAppToken()} to obtain the app token.
+ * Provides the application's own token. App tokens are cached per security client and shared by every provider built
+ * on that client, so statements don't call the security service. A background thread fetches a new token shortly
+ * before the cached one expires; statements only wait for a fetch when there is no unexpired token at all.
+ * <p />
+ * A cache whose token wasn't asked for since it was last fetched isn't refreshed again, and is released, so that
+ * caches of security clients no longer in use don't keep refreshing forever. Its providers fetch in the foreground on
+ * their next use. Cache hits, misses and fetch latency are recorded in {@link EzPostgresMetrics}.
  */
 class ApplicationTokenProvider implements Provider<EzSecurityToken> {
     private static final Logger logger = LoggerFactory.getLogger(ApplicationTokenProvider.class);
-    private EzSecurityClient securityClient;
+
+    /** Fetch a new app token this long before the cached one expires */
+    static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Wait this long before retrying a failed background refresh */
+    static final long REFRESH_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /** Caches shared with new providers, until they are released while idle */
+    private static final ConcurrentMap<EzSecurityClient, TokenCache> caches =
+            new ConcurrentHashMap<EzSecurityClient, TokenCache>();
+
+    private TokenCache cache;
 
     /**
      * Constructs a new provider that gets app tokens from the security client.
@@ -36,18 +56,140 @@ class ApplicationTokenProvider implements Provider<EzSecurityToken> {
      * @param securityClient security client
      */
     public ApplicationTokenProvider(EzSecurityClient securityClient) {
-        this.securityClient = securityClient;
+        TokenCache newCache = new TokenCache(securityClient);
+        TokenCache existingCache = caches.putIfAbsent(securityClient, newCache);
+        this.cache = existingCache == null ? newCache : existingCache;
     }
 
     @Override
     public EzSecurityToken get() {
-        EzSecurityToken token = null;
-        try {
-            token = securityClient.fetchAppToken();
-        } catch (EzSecurityTokenException e) {
-            logger.error("Couldn't get app token from security client", e);
+        return cache.get();
+    }
+
+    /**
+     * @param securityClient a security client
+     * @return true if an app token cache of the security client is shared with new providers
+     */
+    static boolean isCached(EzSecurityClient securityClient) {
+        return caches.containsKey(securityClient);
+    }
+
+    /**
+     * App token cached for a single security client.
+     */
+    private static class TokenCache implements Runnable {
+        private final EzSecurityClient securityClient;
+        private final EzPostgresMetrics metrics = EzPostgresMetrics.getInstance();
+
+        private volatile CachedToken cached;
+        private ScheduledFuture<?> scheduledRefresh;
+
+        /** Whether the token was asked for since it was last fetched */
+        private volatile boolean used;
+
+        TokenCache(EzSecurityClient securityClient) {
+            this.securityClient = securityClient;
         }
 
-        return token;
+        EzSecurityToken get() {
+            CachedToken current = cached;
+            if (current != null && System.currentTimeMillis() < current.expirationMillis) {
+                if (!used) {
+                    used = true;
+                }
+                metrics.recordTokenCacheHit();
+                return current.token;
+            }
+
+            metrics.recordTokenCacheMiss();
+            synchronized (this) {
+                // Another thread may have fetched while we were waiting
+                current = cached;
+                if (current != null && System.currentTimeMillis() < current.expirationMillis) {
+                    return current.token;
+                }
+
+                try {
+                    // Share the cache again if it was released while idle
+                    caches.putIfAbsent(securityClient, this);
+                    current = fetch();
+                    return current == null ? null : current.token;
+                } catch (EzSecurityTokenException e) {
+                    logger.error("Couldn't get app token from security client", e);
+                    return null;
+                }
+            }
+        }
+
+        /** Background refresh */
+        @Override
+        public synchronized void run() {
+            scheduledRefresh = null;
+            if (!used) {
+                logger.debug("Releasing app token cache that wasn't used since its last fetch");
+                caches.remove(securityClient, this);
+                return;
+            }
+
+            // A cache that keeps failing to refresh is also released once it is no longer used
+            used = false;
+            try {
+                fetch();
+            } catch (EzSecurityTokenException e) {
+                logger.warn("Couldn't refresh app token from security client, retrying in {} ms",
+                        REFRESH_RETRY_MILLIS, e);
+                schedule(REFRESH_RETRY_MILLIS);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error refreshing app token, retrying in {} ms", REFRESH_RETRY_MILLIS, e);
+                schedule(REFRESH_RETRY_MILLIS);
+            }
+        }
+
+        /**
+         * Fetch a new token, cache it and schedule its refresh.
+         *
+         * @return the new token, or null if the security client returned none
+         * @throws EzSecurityTokenException if the security client couldn't provide a token
+         */
+        private synchronized CachedToken fetch() throws EzSecurityTokenException {
+            long start = System.nanoTime();
+            EzSecurityToken token = securityClient.fetchAppToken();
+            metrics.recordTokenFetch(start);
+            if (token == null) {
+                return null;
+            }
+
+            CachedToken fetched = new CachedToken(token);
+            cached = fetched;
+            used = false;
+
+            long refreshMillis = SecurityTokens.getRefreshMillis(token, REFRESH_MARGIN_MILLIS);
+            if (refreshMillis != Long.MAX_VALUE) {
+                schedule(Math.max(0, refreshMillis - System.currentTimeMillis()));
+            }
+
+            return fetched;
+        }
+
+        private synchronized void schedule(long delayMillis) {
+            if (scheduledRefresh != null) {
+                scheduledRefresh.cancel(false);
+            }
+
+            scheduledRefresh = BackgroundScheduler.get().schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Token along with its expiration time, published together.
+     */
+    private static class CachedToken {
+        private final EzSecurityToken token;
+        private final long expirationMillis;
+
+        CachedToken(EzSecurityToken token) {
+            this.token = token;
+            this.expirationMillis = SecurityTokens.getExpirationMillis(token);
+        }
     }
 }
@@ -0,0 +1,58 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared scheduler for the driver's background work, such as refreshing cached tokens. Its threads are daemons so
+ * they never keep an application from exiting.
+ */
+final class BackgroundScheduler {
+
+    private BackgroundScheduler() {
+    }
+
+    /**
+     * @return the shared scheduler, created on first use
+     */
+    public static ScheduledExecutorService get() {
+        return Holder.SCHEDULER;
+    }
+
+    private static class Holder {
+        static final ScheduledExecutorService SCHEDULER = create();
+
+        private static ScheduledExecutorService create() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ezpostgres-background-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+
+            return executor;
+        }
+    }
+}
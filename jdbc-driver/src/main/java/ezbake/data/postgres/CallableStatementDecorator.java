@@ -14,9 +14,6 @@
 
 package ezbake.data.postgres;
 
-import ezbake.base.thrift.EzSecurityToken;
-
-import javax.inject.Provider;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
@@ -47,10 +44,12 @@ class CallableStatementDecorator extends PreparedStatementDecorator implements C
      * Wrap an existing callable statement.
      *
      * @param callableStatement statement to wrap
-     * @param tokenProvider token provider
+     * @param connectionDecorator decorated connection that created the statement
+     * @param sql SQL the statement was prepared with
      */
-    public CallableStatementDecorator(CallableStatement callableStatement, Provider<EzSecurityToken> tokenProvider) {
-        super(callableStatement, tokenProvider);
+    public CallableStatementDecorator(CallableStatement callableStatement, ConnectionDecorator connectionDecorator,
+            String sql) {
+        super(callableStatement, connectionDecorator, sql);
 
         this.callableStatement = callableStatement;
     }
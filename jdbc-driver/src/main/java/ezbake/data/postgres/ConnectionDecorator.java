@@ -15,11 +15,19 @@
 package ezbake.data.postgres;
 
 import ezbake.base.thrift.EzSecurityToken;
+import ezbake.thrift.ThriftUtils;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Provider;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
+import java.sql.ClientInfoStatus;
 import java.sql.Clob;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -32,33 +40,332 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
 
-class ConnectionDecorator implements Connection {
-
-    private Connection connection;
-    private Provider<EzSecurityToken> tokenProvider;
-
-    public ConnectionDecorator(Connection connection, Provider<EzSecurityToken> tokenProvider) {
+class ConnectionDecorator implements EzPostgresConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionDecorator.class);
+
+    /** Stands in for the real connection once a decorator has been detached from it */
+    private static final Connection CLOSED_CONNECTION = (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("isClosed")) {
+                        return true;
+                    } else if (name.equals("close")) {
+                        return null;
+                    } else if (name.equals("isValid")) {
+                        return false;
+                    } else if (name.equals("toString")) {
+                        return "closed connection";
+                    } else if (name.equals("setClientInfo")) {
+                        throw new SQLClientInfoException();
+                    }
+
+                    throw new SQLException("Connection is closed");
+                }
+            });
+
+    private volatile Connection connection;
+    private volatile Provider<EzSecurityToken> tokenProvider;
+    private TokenPropertySetter tokenPropertySetter;
+    private QueryLog queryLog;
+
+    /** Rows to insert with each statement of a rewritten INSERT batch, or 0 not to rewrite batches */
+    private int batchRewriteRows;
+
+    /** Token that replaces the provider's token, or null */
+    private volatile EzSecurityToken securityToken;
+
+    /** Client info string the current token was set from, so setting it again doesn't deserialize it */
+    private String securityTokenClientInfo;
+
+    public ConnectionDecorator(Connection connection, Provider<EzSecurityToken> tokenProvider,
+            Properties properties) {
+        this(connection, tokenProvider, new TokenPropertySetter(connection, properties), new QueryLog(properties),
+                Integer.parseInt(properties.getProperty(EzPostgresDriver.EZBAKE_BATCH_REWRITE_ROWS_PROPERTY, "0")));
+    }
+
+    /**
+     * Decorate a connection whose token property is already tracked by another decorator, such as a pooled
+     * connection handed out again.
+     *
+     * @param connection the real (undecorated) connection
+     * @param tokenProvider provider of the token to set
+     * @param tokenPropertySetter object tracking the token property of the connection's session
+     * @param queryLog log to record the connection's statements in
+     * @param batchRewriteRows rows to insert with each statement of a rewritten INSERT batch, or 0 not to rewrite
+     */
+    ConnectionDecorator(Connection connection, Provider<EzSecurityToken> tokenProvider,
+            TokenPropertySetter tokenPropertySetter, QueryLog queryLog, int batchRewriteRows) {
         this.connection = connection;
         this.tokenProvider = tokenProvider;
+        this.tokenPropertySetter = tokenPropertySetter;
+        this.queryLog = queryLog;
+        this.batchRewriteRows = batchRewriteRows;
+    }
+
+    /**
+     * Set the security token as a database property, unless the session already carries that token. The token is the
+     * statement's own token if it has one, else the token set on this connection, else the token provider's. In
+     * transaction-scoped mode outside auto-commit, the provider's token is only set, and the provider only asked, once
+     * per transaction.
+     *
+     * @param statementToken token set on the statement being executed, or null
+     * @throws SQLException if no token could be provided or the property-setting statement could not be executed
+     */
+    void applySecurityToken(EzSecurityToken statementToken) throws SQLException {
+        checkAttached();
+        EzSecurityToken token = statementToken != null ? statementToken : securityToken;
+
+        if (tokenPropertySetter.isTransactionScoped() && !connection.getAutoCommit()) {
+            if (token != null) {
+                tokenPropertySetter.applyToTransaction(token, false);
+            } else if (!tokenPropertySetter.elideInTransaction()) {
+                tokenPropertySetter.applyToTransaction(getProvidedToken(), true);
+            }
+            return;
+        }
+
+        tokenPropertySetter.apply(token != null ? token : getProvidedToken());
+    }
+
+    /**
+     * Prepare to send the security token in the same simple query as a statement. If piggybacking is disabled or the
+     * token is transaction-scoped, the token is applied with its own statement and null is returned.
+     *
+     * @param statementToken token set on the statement being executed, or null
+     * @return the property-setting command to send ahead of the statement, or null if nothing needs to be sent
+     * @throws SQLException if no token could be provided or the property-setting statement could not be executed
+     * @see TokenPropertySetter#beginPiggyback(EzSecurityToken)
+     */
+    String beginTokenPiggyback(EzSecurityToken statementToken) throws SQLException {
+        checkAttached();
+        if (!tokenPropertySetter.isPiggybackEnabled()
+                || (tokenPropertySetter.isTransactionScoped() && !connection.getAutoCommit())) {
+            applySecurityToken(statementToken);
+            return null;
+        }
+
+        EzSecurityToken token = statementToken != null ? statementToken : securityToken;
+
+        return tokenPropertySetter.beginPiggyback(token != null ? token : getProvidedToken());
+    }
+
+    /**
+     * Statements outlive a pooled connection's checkout if they aren't closed, but must not set a token on a session
+     * that has been handed to someone else.
+     *
+     * @throws SQLException if this decorator has been detached from its real connection
+     */
+    private void checkAttached() throws SQLException {
+        if (connection == CLOSED_CONNECTION) {
+            throw new SQLException("Connection is closed");
+        }
+    }
+
+    private EzSecurityToken getProvidedToken() throws SQLException {
+        EzPostgresMetrics metrics = EzPostgresMetrics.getInstance();
+        EzPostgresTracer tracer = EzPostgresTracer.getInstance();
+        EzPostgresTracer.Span span = tracer.isSampled(EzPostgresTracer.Operation.TOKEN_FETCH)
+                ? tracer.startSpan(EzPostgresTracer.Operation.TOKEN_FETCH) : null;
+
+        try {
+            long start = System.nanoTime();
+            EzSecurityToken token;
+            try {
+                token = tokenProvider.get();
+            } catch (RuntimeException e) {
+                metrics.recordTokenProviderFailure();
+                throw e;
+            }
+            metrics.recordTokenProvider(start);
+
+            if (token == null) {
+                metrics.recordTokenProviderFailure();
+                throw new SQLException("Could not get security token from token provider");
+            }
+
+            if (span != null) {
+                span.setAttribute(EzPostgresTracer.PROVIDER_ATTRIBUTE, tokenProvider.getClass().getName());
+                span.setAttribute(EzPostgresTracer.CARRIED_ATTRIBUTE, tokenPropertySetter.carries(token));
+                EzPostgresTracer.setTokenAttributes(span, token);
+            }
+
+            return token;
+        } catch (SQLException | RuntimeException e) {
+            if (span != null) {
+                span.recordError(e);
+            }
+            throw e;
+        } finally {
+            if (span != null) {
+                span.end();
+            }
+        }
+    }
+
+    /**
+     * @return the object tracking the token property of this connection's session
+     */
+    TokenPropertySetter getTokenPropertySetter() {
+        return tokenPropertySetter;
+    }
+
+    /**
+     * @return the log this connection's statements are recorded in
+     */
+    QueryLog getQueryLog() {
+        return queryLog;
+    }
+
+    /**
+     * @return rows to insert with each statement of a rewritten INSERT batch, or 0 if batches aren't rewritten
+     */
+    int getBatchRewriteRows() {
+        return batchRewriteRows;
+    }
+
+    /**
+     * Record a statement's execution in the driver's metrics, the query log and the execution's span, which is ended.
+     *
+     * @param sql the statement's SQL, or null if it has none
+     * @param executeNanos time taken executing the statement
+     * @param tokenNanos time taken getting and setting the token before the statement
+     * @param rows rows the statement updated, or -1 if unknown
+     * @param span span of the execution, or null if it isn't traced
+     */
+    void recordStatement(String sql, long executeNanos, long tokenNanos, long rows, EzPostgresTracer.Span span) {
+        EzPostgresMetrics.getInstance().recordExecute(executeNanos);
+        queryLog.record(sql, executeNanos, tokenNanos, rows, tokenPropertySetter);
+
+        if (span != null) {
+            if (sql != null) {
+                span.setAttribute(EzPostgresTracer.FINGERPRINT_ATTRIBUTE, SqlFingerprint.of(sql));
+            }
+            if (rows >= 0) {
+                span.setAttribute(EzPostgresTracer.ROWS_ATTRIBUTE, rows);
+            }
+            EzPostgresTracer.setTokenAttributes(span, tokenPropertySetter.getAppliedToken());
+            span.end();
+        }
+    }
+
+    @Override
+    public synchronized void setSecurityToken(EzSecurityToken token) {
+        securityTokenClientInfo = null;
+        securityToken = token;
+    }
+
+    @Override
+    public EzSecurityToken getSecurityToken() {
+        return securityToken;
+    }
+
+    @Override
+    public void setTokenProvider(Provider<EzSecurityToken> tokenProvider) {
+        this.tokenProvider = tokenProvider;
+    }
+
+    @Override
+    public EzPostgresCopyManager getCopyAPI() {
+        return new EzPostgresCopyManager(this);
+    }
+
+    /**
+     * Set the token from its client info string, unless it is the string the current token was set from.
+     *
+     * @param value base64 encoded token, or null or empty to go back to the token provider
+     * @throws SQLClientInfoException if the token could not be deserialized
+     */
+    private synchronized void setSecurityTokenClientInfo(String value) throws SQLClientInfoException {
+        if (value == null || value.isEmpty()) {
+            securityTokenClientInfo = null;
+            securityToken = null;
+            return;
+        }
+
+        if (value.equals(securityTokenClientInfo)) {
+            return;
+        }
+
+        try {
+            securityToken = ThriftUtils.deserializeFromBase64(EzSecurityToken.class, value);
+            securityTokenClientInfo = value;
+        } catch (TException e) {
+            throw new SQLClientInfoException("Could not deserialize security token",
+                    Collections.singletonMap(CLIENT_INFO_SECURITY_TOKEN, ClientInfoStatus.REASON_VALUE_INVALID), e);
+        }
+    }
+
+    /**
+     * Go back to the token provider if the current token was set through client info. A token set with
+     * {@link #setSecurityToken(EzSecurityToken)} is kept, since replacing the client info doesn't concern it.
+     */
+    private synchronized void clearSecurityTokenClientInfo() {
+        if (securityTokenClientInfo != null) {
+            securityTokenClientInfo = null;
+            securityToken = null;
+        }
+    }
+
+    /**
+     * @return the real (undecorated) connection
+     */
+    Connection getWrappedConnection() {
+        return connection;
+    }
+
+    /**
+     * @return provider of the token set on this connection
+     */
+    Provider<EzSecurityToken> getTokenProvider() {
+        return tokenProvider;
+    }
+
+    /**
+     * Stop using the real connection without closing it. Afterwards this decorator behaves like a closed connection.
+     */
+    void detach() {
+        connection = CLOSED_CONNECTION;
+    }
+
+    /**
+     * Called with each statement this connection creates, before it is returned.
+     *
+     * @param statement the new statement
+     * @return the statement
+     * @throws SQLException if the statement can't be used
+     */
+    <T extends StatementDecorator> T opened(T statement) throws SQLException {
+        return statement;
+    }
+
+    /**
+     * Called when a statement this connection created is closed.
+     *
+     * @param statement the closed statement
+     */
+    void closed(StatementDecorator statement) {
     }
 
     @Override
     public Statement createStatement() throws SQLException {
-        return new StatementDecorator(connection.createStatement(), tokenProvider);
+        return opened(new StatementDecorator(connection.createStatement(), this));
     }
 
     @Override
     public PreparedStatement prepareStatement(String s) throws SQLException {
-        return new PreparedStatementDecorator(connection.prepareStatement(s), tokenProvider);
+        return opened(new PreparedStatementDecorator(connection.prepareStatement(s), this, s, batchRewriteRows));
     }
 
     @Override
     public CallableStatement prepareCall(String s) throws SQLException {
-        return new CallableStatementDecorator(connection.prepareCall(s), tokenProvider);
+        return opened(new CallableStatementDecorator(connection.prepareCall(s), this, s));
     }
 
     @Override
@@ -68,6 +375,7 @@ class ConnectionDecorator implements Connection {
 
     @Override
     public void setAutoCommit(boolean b) throws SQLException {
+        tokenPropertySetter.endTransaction();
         connection.setAutoCommit(b);
     }
 
@@ -78,17 +386,26 @@ class ConnectionDecorator implements Connection {
 
     @Override
     public void commit() throws SQLException {
+        tokenPropertySetter.endTransaction();
         connection.commit();
     }
 
     @Override
     public void rollback() throws SQLException {
+        tokenPropertySetter.invalidate();
         connection.rollback();
     }
 
     @Override
     public void close() throws SQLException {
-        connection.close();
+        logger.debug("Closing connection; token property sets issued: {}, elided: {}",
+                tokenPropertySetter.getSetsIssued(), tokenPropertySetter.getSetsElided());
+
+        try {
+            tokenPropertySetter.close();
+        } finally {
+            connection.close();
+        }
     }
 
     @Override
@@ -143,17 +460,17 @@ class ConnectionDecorator implements Connection {
 
     @Override
     public Statement createStatement(int i, int i2) throws SQLException {
-        return new StatementDecorator(connection.createStatement(i, i2), tokenProvider);
+        return opened(new StatementDecorator(connection.createStatement(i, i2), this));
     }
 
     @Override
     public PreparedStatement prepareStatement(String s, int i, int i2) throws SQLException {
-        return new PreparedStatementDecorator(connection.prepareStatement(s, i, i2), tokenProvider);
+        return opened(new PreparedStatementDecorator(connection.prepareStatement(s, i, i2), this, s));
     }
 
     @Override
     public CallableStatement prepareCall(String s, int i, int i2) throws SQLException {
-        return new CallableStatementDecorator(connection.prepareCall(s, i, i2), tokenProvider);
+        return opened(new CallableStatementDecorator(connection.prepareCall(s, i, i2), this, s));
     }
 
     @Override
@@ -188,6 +505,7 @@ class ConnectionDecorator implements Connection {
 
     @Override
     public void rollback(Savepoint savepoint) throws SQLException {
+        tokenPropertySetter.invalidate();
         connection.rollback(savepoint);
     }
 
@@ -198,32 +516,32 @@ class ConnectionDecorator implements Connection {
 
     @Override
     public Statement createStatement(int i, int i2, int i3) throws SQLException {
-        return new StatementDecorator(connection.createStatement(i, i2, i3), tokenProvider);
+        return opened(new StatementDecorator(connection.createStatement(i, i2, i3), this));
     }
 
     @Override
     public PreparedStatement prepareStatement(String s, int i, int i2, int i3) throws SQLException {
-        return new PreparedStatementDecorator(connection.prepareStatement(s, i, i2, i3), tokenProvider);
+        return opened(new PreparedStatementDecorator(connection.prepareStatement(s, i, i2, i3), this, s));
     }
 
     @Override
     public CallableStatement prepareCall(String s, int i, int i2, int i3) throws SQLException {
-        return new CallableStatementDecorator(connection.prepareCall(s, i, i2, i3), tokenProvider);
+        return opened(new CallableStatementDecorator(connection.prepareCall(s, i, i2, i3), this, s));
     }
 
     @Override
     public PreparedStatement prepareStatement(String s, int i) throws SQLException {
-        return new PreparedStatementDecorator(connection.prepareStatement(s, i), tokenProvider);
+        return opened(new PreparedStatementDecorator(connection.prepareStatement(s, i), this, s));
     }
 
     @Override
     public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
-        return new PreparedStatementDecorator(connection.prepareStatement(s, ints), tokenProvider);
+        return opened(new PreparedStatementDecorator(connection.prepareStatement(s, ints), this, s));
     }
 
     @Override
     public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
-        return new PreparedStatementDecorator(connection.prepareStatement(s, strings), tokenProvider);
+        return opened(new PreparedStatementDecorator(connection.prepareStatement(s, strings), this, s));
     }
 
     @Override
@@ -253,22 +571,50 @@ class ConnectionDecorator implements Connection {
 
     @Override
     public void setClientInfo(String s, String s2) throws SQLClientInfoException {
+        if (CLIENT_INFO_SECURITY_TOKEN.equals(s)) {
+            setSecurityTokenClientInfo(s2);
+            return;
+        }
+
         connection.setClientInfo(s, s2);
     }
 
     @Override
     public void setClientInfo(Properties properties) throws SQLClientInfoException {
-        connection.setClientInfo(properties);
+        Properties realProperties = properties;
+        if (properties.containsKey(CLIENT_INFO_SECURITY_TOKEN)) {
+            setSecurityTokenClientInfo(properties.getProperty(CLIENT_INFO_SECURITY_TOKEN));
+            realProperties = (Properties) properties.clone();
+            realProperties.remove(CLIENT_INFO_SECURITY_TOKEN);
+        } else {
+            clearSecurityTokenClientInfo();
+        }
+
+        connection.setClientInfo(realProperties);
     }
 
     @Override
     public String getClientInfo(String s) throws SQLException {
+        if (CLIENT_INFO_SECURITY_TOKEN.equals(s)) {
+            synchronized (this) {
+                return securityTokenClientInfo;
+            }
+        }
+
         return connection.getClientInfo(s);
     }
 
     @Override
     public Properties getClientInfo() throws SQLException {
-        return connection.getClientInfo();
+        Properties properties = connection.getClientInfo();
+        synchronized (this) {
+            if (securityTokenClientInfo != null) {
+                properties = (Properties) properties.clone();
+                properties.setProperty(CLIENT_INFO_SECURITY_TOKEN, securityTokenClientInfo);
+            }
+        }
+
+        return properties;
     }
 
     @Override
@@ -293,6 +639,7 @@ class ConnectionDecorator implements Connection {
 
     @Override
     public void abort(Executor executor) throws SQLException {
+        tokenPropertySetter.invalidate();
         connection.abort(executor);
     }
 
@@ -307,12 +654,17 @@ class ConnectionDecorator implements Connection {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T> T unwrap(Class<T> tClass) throws SQLException {
+        if (tClass.isInstance(this)) {
+            return (T) this;
+        }
+
         return connection.unwrap(tClass);
     }
 
     @Override
     public boolean isWrapperFor(Class<?> aClass) throws SQLException {
-        return connection.isWrapperFor(aClass);
+        return aClass.isInstance(this) || connection.isWrapperFor(aClass);
     }
 }
@@ -21,36 +21,62 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Provider;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A token provider that provides a given, static security token. The token is validated by the security client before
- * being returned so is refreshed if possible and necessary.
+ * A token provider that provides a given, static security token. The token is validated by the security client on
+ * first use and then only again once it nears expiry, since it can't change for the life of the provider.
  */
 class ExplicitTokenProvider implements Provider<EzSecurityToken> {
     private static final Logger logger = LoggerFactory.getLogger(ExplicitTokenProvider.class);
-    private EzSecurityClient securityClient;
+
+    /** Validate the token again once it is this close to expiring */
+    static final long REVALIDATE_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Validate at most this often after a failure, or once the token is near expiry */
+    static final long REVALIDATE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private Provider<EzSecurityClient> securityClient;
     private EzSecurityToken explicitToken;
 
+    /** Time at which the token must next be validated, 0 before the first validation */
+    private volatile long revalidateMillis;
+
     /**
      * Constructs a new provider that returns the given security token
      *
-     * @param securityClient security client
+     * @param securityClient provider of the security client, asked for it on first use
      * @param explicitToken token to provide
      */
-    public ExplicitTokenProvider(EzSecurityClient securityClient, EzSecurityToken explicitToken) {
+    public ExplicitTokenProvider(Provider<EzSecurityClient> securityClient, EzSecurityToken explicitToken) {
         this.securityClient = securityClient;
         this.explicitToken = explicitToken;
     }
 
     @Override
     public EzSecurityToken get() {
-        EzSecurityToken token = explicitToken;
+        if (System.currentTimeMillis() >= revalidateMillis) {
+            validate();
+        }
+
+        return explicitToken;
+    }
+
+    private synchronized void validate() {
+        long now = System.currentTimeMillis();
+        if (now < revalidateMillis) {
+            // Another thread validated while we were waiting
+            return;
+        }
+
         try {
-            securityClient.validateReceivedToken(token);
+            securityClient.get().validateReceivedToken(explicitToken);
+
+            long refreshMillis = SecurityTokens.getRefreshMillis(explicitToken, REVALIDATE_MARGIN_MILLIS);
+            revalidateMillis = refreshMillis > now ? refreshMillis : now + REVALIDATE_INTERVAL_MILLIS;
         } catch (EzSecurityTokenException e) {
             logger.error("Couldn't validate explicit token in security client", e);
+            revalidateMillis = now + REVALIDATE_INTERVAL_MILLIS;
         }
-
-        return token;
     }
 }
@@ -0,0 +1,67 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+
+import javax.inject.Provider;
+import java.sql.Connection;
+
+/**
+ * Extension of the connections returned by {@link EzPostgresDriver} and {@link EzPostgresDataSource}, reached through
+ * <code>connection.unwrap(EzPostgresConnection.class)</code>. It lets one connection serve many users by changing the
+ * token that is set for its statements.
+ * <p />
+ * The token can also be changed through the client info property {@value #CLIENT_INFO_SECURITY_TOKEN}, set to a
+ * base64 encoded EzSecurityToken (or an empty string to go back to the token provider). Setting the same string again
+ * is cheap.
+ * <p />
+ * Tokens set either way are not validated: the driver sends them to the database as they are, and the database trusts
+ * them. Callers must only set tokens they have validated themselves, for example with
+ * <code>EzSecurityClient.validateReceivedToken</code> when the token arrived with a request, or fetched from the
+ * security client. Never set a token taken unchecked from a client of the application.
+ */
+public interface EzPostgresConnection extends Connection {
+
+    /** Client info property that sets the connection's token */
+    String CLIENT_INFO_SECURITY_TOKEN = "EzSecurityToken";
+
+    /**
+     * Set the token for statements executed with this connection, instead of asking the token provider. The token is
+     * not validated, so it must be one the caller has already validated.
+     *
+     * @param token token to set, or null to go back to the token provider
+     */
+    void setSecurityToken(EzSecurityToken token);
+
+    /**
+     * @return the token set with {@link #setSecurityToken(EzSecurityToken)}, or null if the token provider is used
+     */
+    EzSecurityToken getSecurityToken();
+
+    /**
+     * Replace the provider of the token set for statements executed with this connection.
+     *
+     * @param tokenProvider new token provider
+     */
+    void setTokenProvider(Provider<EzSecurityToken> tokenProvider);
+
+    /**
+     * Get the API for bulk loading with <code>COPY</code>, which sets this connection's token like a statement would.
+     *
+     * @return the copy API of this connection
+     */
+    EzPostgresCopyManager getCopyAPI();
+}
@@ -0,0 +1,491 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk loads and exports tables with <code>COPY</code> through an EzBake connection, reached through
+ * {@link EzPostgresConnection#getCopyAPI()}. Each copy sets the connection's token first, as a statement would, and is
+ * recorded in the driver's metrics, query log and traces like one.
+ * <p />
+ * Data in PostgreSQL's <code>COPY</code> format can be streamed from an {@link InputStream} or {@link Reader}, or rows
+ * can be written one at a time with an {@link EzPostgresRowWriter}, which formats the values and visibility of each
+ * row itself. Either way the data is sent in chunks of a bounded buffer.
+ * <p />
+ * Exports stream each row to an {@link OutputStream} or {@link WritableByteChannel} as it arrives. Because
+ * <code>COPY table TO</code> reads the table without planning a query, it would bypass the visibility filter, so it is
+ * always rewritten to the <code>COPY (SELECT ... FROM table) TO</code> form, which is filtered.
+ * <p />
+ * While a copy is in progress, its connection can't execute anything else.
+ */
+public class EzPostgresCopyManager {
+
+    /** Default size in bytes of the buffer copy data is sent in */
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    /** Start of an export of a query, which the visibility filter applies to */
+    private static final Pattern COPY_QUERY_OUT = Pattern.compile("^\\s*copy\\s*\\(", Pattern.CASE_INSENSITIVE);
+
+    /** Destination of an export of a query, after the query's closing parenthesis */
+    private static final Pattern QUERY_TO_STDOUT = Pattern.compile("^\\s*to\\s+stdout\\b(.*)$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** Exports of a table and optionally some of its columns, with the rest of the statement after STDOUT */
+    private static final Pattern COPY_TABLE_OUT = Pattern.compile(
+            "^\\s*copy\\s+((?:\"(?:[^\"]|\"\")*\"|[^\\s(\".]+)(?:\\s*\\.\\s*(?:\"(?:[^\"]|\"\")*\"|[^\\s(\".]+))?)"
+                    + "(?:\\s*\\(([^)]*)\\)\\s*|\\s+)to\\s+stdout\\b(.*)$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** A string constant, with or without backslash escapes */
+    private static final String STRING = "(?:'(?:[^']|'')*'|e'(?:[^'\\\\]|''|\\\\.)*')";
+
+    /** A quoted or unquoted identifier */
+    private static final String IDENTIFIER = "(?:\"(?:[^\"]|\"\")*\"|[a-z_][a-z_0-9$]*)";
+
+    /**
+     * Options an export may have after STDOUT: either a parenthesized option list, or the options of the syntax
+     * before PostgreSQL 9.0, optionally after WITH.
+     */
+    private static final Pattern COPY_OUT_OPTIONS = Pattern.compile(
+            "^(?:\\s+with)?(?:\\s*\\((?:[^;()'\"]|" + STRING + "|\"(?:[^\"]|\"\")*\""
+                    + "|\\((?:[^;()'\"]|\"(?:[^\"]|\"\")*\")*\\))*\\)"
+                    + "|(?:\\s+(?:binary|oids|csv|header|(?:delimiter|null|quote|escape)(?:\\s+as)?\\s+" + STRING
+                    + "|force\\s+quote\\s+(?:\\*|" + IDENTIFIER + "(?:\\s*,\\s*" + IDENTIFIER + ")*)))*)\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** Formats an export can be written in */
+    public enum Format {
+        /** PostgreSQL's tab-separated text format */
+        TEXT,
+
+        /** Comma-separated values */
+        CSV,
+
+        /** PostgreSQL's binary format */
+        BINARY
+    }
+
+    private final ConnectionDecorator connection;
+
+    /**
+     * @param connection connection to copy through
+     */
+    EzPostgresCopyManager(ConnectionDecorator connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Copy data into a table.
+     *
+     * @param sql <code>COPY ... FROM STDIN</code> statement
+     * @param from data in the format the statement specifies
+     * @return number of rows copied
+     * @throws SQLException if the token could not be set or the copy failed
+     * @throws IOException if the data could not be read
+     */
+    public long copyIn(String sql, InputStream from) throws SQLException, IOException {
+        return copyIn(sql, from, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Copy data into a table.
+     *
+     * @param sql <code>COPY ... FROM STDIN</code> statement
+     * @param from data in the format the statement specifies
+     * @param bufferSize number of bytes to read and send at a time
+     * @return number of rows copied
+     * @throws SQLException if the token could not be set or the copy failed
+     * @throws IOException if the data could not be read
+     */
+    public long copyIn(String sql, InputStream from, int bufferSize) throws SQLException, IOException {
+        CopyManager copyManager = getCopyManager();
+        long tokenNanos = applySecurityToken();
+        EzPostgresTracer.Span span = startSpan();
+        long start = System.nanoTime();
+        long rows = -1;
+        try {
+            rows = copyManager.copyIn(sql, from, bufferSize);
+            return rows;
+        } finally {
+            record(sql, start, tokenNanos, rows, span);
+        }
+    }
+
+    /**
+     * Copy text data into a table.
+     *
+     * @param sql <code>COPY ... FROM STDIN</code> statement
+     * @param from data in the format the statement specifies
+     * @return number of rows copied
+     * @throws SQLException if the token could not be set or the copy failed
+     * @throws IOException if the data could not be read
+     */
+    public long copyIn(String sql, Reader from) throws SQLException, IOException {
+        return copyIn(sql, from, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Copy text data into a table.
+     *
+     * @param sql <code>COPY ... FROM STDIN</code> statement
+     * @param from data in the format the statement specifies
+     * @param bufferSize number of characters to read and send at a time
+     * @return number of rows copied
+     * @throws SQLException if the token could not be set or the copy failed
+     * @throws IOException if the data could not be read
+     */
+    public long copyIn(String sql, Reader from, int bufferSize) throws SQLException, IOException {
+        CopyManager copyManager = getCopyManager();
+        long tokenNanos = applySecurityToken();
+        EzPostgresTracer.Span span = startSpan();
+        long start = System.nanoTime();
+        long rows = -1;
+        try {
+            rows = copyManager.copyIn(sql, from, bufferSize);
+            return rows;
+        } finally {
+            record(sql, start, tokenNanos, rows, span);
+        }
+    }
+
+    /**
+     * Export data. A <code>COPY table TO STDOUT</code> statement is rewritten to export the table through a query,
+     * so that only rows visible to the token are exported.
+     *
+     * @param sql <code>COPY table TO STDOUT</code> or <code>COPY (query) TO STDOUT</code> statement
+     * @param to stream to write the data to, in the format the statement specifies
+     * @return number of rows exported
+     * @throws SQLException if the statement isn't supported, the token could not be set or the export failed
+     * @throws IOException if the data could not be written
+     */
+    public long copyOut(String sql, OutputStream to) throws SQLException, IOException {
+        String filteredSql = filterCopyOut(sql);
+        CopyManager copyManager = getCopyManager();
+        long tokenNanos = applySecurityToken();
+        EzPostgresTracer.Span span = startSpan();
+        long start = System.nanoTime();
+        long rows = -1;
+        try {
+            rows = copyManager.copyOut(filteredSql, to);
+            return rows;
+        } finally {
+            record(filteredSql, start, tokenNanos, rows, span);
+        }
+    }
+
+    /**
+     * Export data. A <code>COPY table TO STDOUT</code> statement is rewritten to export the table through a query,
+     * so that only rows visible to the token are exported.
+     *
+     * @param sql <code>COPY table TO STDOUT</code> or <code>COPY (query) TO STDOUT</code> statement
+     * @param to channel to write the data to, in the format the statement specifies; it is left open
+     * @return number of rows exported
+     * @throws SQLException if the statement isn't supported, the token could not be set or the export failed
+     * @throws IOException if the data could not be written
+     */
+    public long copyOut(String sql, WritableByteChannel to) throws SQLException, IOException {
+        return copyOut(sql, Channels.newOutputStream(to));
+    }
+
+    /**
+     * Export the rows of a query.
+     *
+     * @param query query to export the rows of
+     * @param format format to write the rows in
+     * @param to stream to write the rows to
+     * @return number of rows exported
+     * @throws SQLException if the token could not be set or the export failed
+     * @throws IOException if the rows could not be written
+     */
+    public long copyOutQuery(String query, Format format, OutputStream to) throws SQLException, IOException {
+        return copyOut(copyOutSql(query, format), to);
+    }
+
+    /**
+     * Export the rows of a query.
+     *
+     * @param query query to export the rows of
+     * @param format format to write the rows in
+     * @param to channel to write the rows to; it is left open
+     * @return number of rows exported
+     * @throws SQLException if the token could not be set or the export failed
+     * @throws IOException if the rows could not be written
+     */
+    public long copyOutQuery(String query, Format format, WritableByteChannel to) throws SQLException, IOException {
+        return copyOut(copyOutSql(query, format), Channels.newOutputStream(to));
+    }
+
+    /**
+     * @param query query to export the rows of
+     * @param format format to write the rows in
+     * @return a statement exporting the query's rows to STDOUT
+     */
+    static String copyOutSql(String query, Format format) {
+        return "COPY (" + query + ") TO STDOUT WITH (FORMAT " + format.name() + ")";
+    }
+
+    /**
+     * Rewrite an export so that the visibility filter applies to it. Exports of a query are returned as is, and
+     * exports of a table are rewritten to export a query of the table. Only the export's options may follow STDOUT,
+     * and anything else, such as another statement after a semicolon, is rejected, since it wouldn't be filtered.
+     *
+     * @param sql <code>COPY ... TO STDOUT</code> statement
+     * @return an equivalent statement that exports through a query
+     * @throws SQLException if the SQL isn't a single export to STDOUT that can be rewritten
+     */
+    static String filterCopyOut(String sql) throws SQLException {
+        String statement = singleStatement(sql);
+
+        if (COPY_QUERY_OUT.matcher(statement).find()) {
+            int end = closingParenthesis(statement, statement.indexOf('(') + 1);
+            if (end >= 0) {
+                Matcher matcher = QUERY_TO_STDOUT.matcher(statement.substring(end + 1));
+                if (matcher.matches() && COPY_OUT_OPTIONS.matcher(matcher.group(1)).matches()) {
+                    return statement;
+                }
+            }
+        } else {
+            Matcher matcher = COPY_TABLE_OUT.matcher(statement);
+            if (matcher.matches() && COPY_OUT_OPTIONS.matcher(matcher.group(3)).matches()) {
+                String columns = matcher.group(2) != null ? matcher.group(2).trim() : "*";
+
+                return "COPY (SELECT " + columns + " FROM " + matcher.group(1) + ") TO STDOUT" + matcher.group(3);
+            }
+        }
+
+        throw new SQLException("Only COPY table TO STDOUT and COPY (query) TO STDOUT can be exported: " + sql);
+    }
+
+    /**
+     * @param sql SQL that should be one statement
+     * @return the statement, without a trailing semicolon
+     * @throws SQLException if the SQL has more than one statement, or an unterminated quote or comment
+     */
+    private static String singleStatement(String sql) throws SQLException {
+        int i = 0;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == ';') {
+                if (!sql.substring(i + 1).trim().isEmpty()) {
+                    throw new SQLException("Only a single COPY statement can be exported: " + sql);
+                }
+
+                return sql.substring(0, i);
+            }
+            i = skipQuoted(sql, i);
+        }
+
+        return sql;
+    }
+
+    /**
+     * @param sql SQL with an open parenthesis before <code>from</code>
+     * @param from index just after the open parenthesis
+     * @return index of the parenthesis closing it, not counting quoted ones, or -1 if it isn't closed
+     * @throws SQLException if the SQL has an unterminated quote or comment
+     */
+    private static int closingParenthesis(String sql, int from) throws SQLException {
+        int depth = 1;
+        int i = from;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+            i = skipQuoted(sql, i);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param sql SQL to scan
+     * @param i index in the SQL
+     * @return index just after the string, quoted identifier or comment starting at <code>i</code>, or just after the
+     * character at <code>i</code> if none starts there
+     * @throws SQLException if the string, quoted identifier or comment isn't terminated
+     */
+    private static int skipQuoted(String sql, int i) throws SQLException {
+        char c = sql.charAt(i);
+        int end;
+        if (c == '\'') {
+            boolean escapes = i > 0 && Character.toLowerCase(sql.charAt(i - 1)) == 'e'
+                    && (i == 1 || !isIdentifierPart(sql.charAt(i - 2)));
+            end = i + 1;
+            while (end < sql.length()) {
+                char d = sql.charAt(end);
+                if (escapes && d == '\\') {
+                    end += 2;
+                } else if (d == '\'' && end + 1 < sql.length() && sql.charAt(end + 1) == '\'') {
+                    end += 2;
+                } else if (d == '\'') {
+                    return end + 1;
+                } else {
+                    end++;
+                }
+            }
+        } else if (c == '"') {
+            end = sql.indexOf('"', i + 1);
+            while (end >= 0 && end + 1 < sql.length() && sql.charAt(end + 1) == '"') {
+                end = sql.indexOf('"', end + 2);
+            }
+            if (end >= 0) {
+                return end + 1;
+            }
+        } else if (c == '-' && sql.startsWith("--", i)) {
+            end = sql.indexOf('\n', i);
+
+            return end >= 0 ? end + 1 : sql.length();
+        } else if (c == '/' && sql.startsWith("/*", i)) {
+            int depth = 1;
+            end = i + 2;
+            while (end < sql.length()) {
+                if (sql.startsWith("/*", end)) {
+                    depth++;
+                    end += 2;
+                } else if (sql.startsWith("*/", end)) {
+                    end += 2;
+                    if (--depth == 0) {
+                        return end;
+                    }
+                } else {
+                    end++;
+                }
+            }
+        } else if (c == '$' && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+            int tagEnd = i + 1;
+            while (tagEnd < sql.length() && sql.charAt(tagEnd) != '$' && isIdentifierPart(sql.charAt(tagEnd))
+                    && !(tagEnd == i + 1 && Character.isDigit(sql.charAt(tagEnd)))) {
+                tagEnd++;
+            }
+            if (tagEnd >= sql.length() || sql.charAt(tagEnd) != '$') {
+                return i + 1;
+            }
+            String tag = sql.substring(i, tagEnd + 1);
+            end = sql.indexOf(tag, tagEnd + 1);
+            if (end >= 0) {
+                return end + tag.length();
+            }
+        } else {
+            return i + 1;
+        }
+
+        throw new SQLException("Unterminated quote or comment: " + sql);
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * Start copying rows into a table, with each row's visibility in the table's
+     * {@value EzPostgresRowWriter#VISIBILITY_COLUMN} column. The table and column names are used as given, so must be
+     * quoted if they need to be.
+     *
+     * @param table table to copy into
+     * @param columns columns each row has values for, not including the visibility
+     * @return a writer for the rows, which must be ended or closed
+     * @throws SQLException if the token could not be set or the copy could not be started
+     */
+    public EzPostgresRowWriter copyInRows(String table, String... columns) throws SQLException {
+        return copyInRows(table, Arrays.asList(columns), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Start copying rows into a table, with each row's visibility in the table's
+     * {@value EzPostgresRowWriter#VISIBILITY_COLUMN} column. The table and column names are used as given, so must be
+     * quoted if they need to be.
+     *
+     * @param table table to copy into
+     * @param columns columns each row has values for, not including the visibility
+     * @param bufferSize number of bytes of rows to buffer before sending them
+     * @return a writer for the rows, which must be ended or closed
+     * @throws SQLException if the token could not be set or the copy could not be started
+     */
+    public EzPostgresRowWriter copyInRows(String table, List<String> columns, int bufferSize) throws SQLException {
+        StringBuilder sql = new StringBuilder("COPY ").append(table).append(" (");
+        for (String column : columns) {
+            sql.append(column).append(", ");
+        }
+        sql.append(EzPostgresRowWriter.VISIBILITY_COLUMN).append(") FROM STDIN");
+
+        return new EzPostgresRowWriter(this, sql.toString(), columns.size(), bufferSize);
+    }
+
+    /**
+     * @return the real connection's copy API
+     * @throws SQLException if the real connection doesn't support <code>COPY</code>
+     */
+    CopyManager getCopyManager() throws SQLException {
+        Connection realConnection = connection.getWrappedConnection();
+        if (!realConnection.isWrapperFor(PGConnection.class)) {
+            throw new SQLException("Connection doesn't support COPY");
+        }
+
+        return realConnection.unwrap(PGConnection.class).getCopyAPI();
+    }
+
+    /**
+     * Set the connection's token for a copy.
+     *
+     * @return time taken getting and setting the token
+     * @throws SQLException if no token could be provided or the property-setting statement could not be executed
+     */
+    long applySecurityToken() throws SQLException {
+        long start = System.nanoTime();
+        connection.applySecurityToken(null);
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return a started span for a copy, or null if it isn't traced
+     */
+    EzPostgresTracer.Span startSpan() {
+        EzPostgresTracer tracer = EzPostgresTracer.getInstance();
+
+        return tracer.isSampled(EzPostgresTracer.Operation.EXECUTE)
+                ? tracer.startSpan(EzPostgresTracer.Operation.EXECUTE) : null;
+    }
+
+    /**
+     * Record a copy like a statement's execution.
+     *
+     * @param sql the copy statement
+     * @param startNanos time the copy started, from {@link System#nanoTime()}
+     * @param tokenNanos time taken getting and setting the token
+     * @param rows rows copied, or -1 if the copy failed
+     * @param span span of the copy, or null if it isn't traced
+     */
+    void record(String sql, long startNanos, long tokenNanos, long rows, EzPostgresTracer.Span span) {
+        connection.recordStatement(sql, System.nanoTime() - startNanos, tokenNanos, rows, span);
+    }
+}
@@ -0,0 +1,896 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Provider;
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pooled DataSource of EzBake connections. Physical connections are opened through {@link EzPostgresDriver} with the
+ * configured URL and properties, kept open between uses and handed out again, so the driver's per-connection state
+ * (the token provider, the prepared property-setting statement and the token the session carries) stays warm.
+ * <p />
+ * When a connection is closed it is returned to the pool. Any open transaction is rolled back, auto-commit, read-only
+ * and the transaction isolation are restored, and, unless token affinity is enabled, the session's
+ * <code>ezbake.token</code> setting is reset, so the next user never runs with a token left behind by the last one.
+ * Statements and result sets left open are closed, and can't be used again.
+ * <p />
+ * At most <code>maxPoolSize</code> connections are checked out at once; callers beyond that wait up to
+ * <code>checkoutTimeoutMillis</code>. Idle connections beyond <code>minPoolSize</code> are closed once they have been
+ * idle for <code>maxIdleMillis</code>, and idle connections are validated before reuse if they have been idle for
+ * longer than <code>validationIntervalMillis</code>. Waiting callers are served in order. The pool is configured
+ * through its setters before the first connection is requested, and should be closed when no longer needed.
+ * <p />
+ * With token affinity enabled, the pool looks up the requesting user's token when a connection is checked out (from
+ * the token provider the connection properties name, or as passed to {@link #getConnection(EzSecurityToken)}) and
+ * prefers an idle connection whose session already carries that token, falling back to any idle connection. Returned
+ * connections then keep their token setting instead of resetting it, so the token only has to be set (and decoded by
+ * the backend) on affinity misses. Statements set their own user's token first, but metadata queries and the
+ * unwrapped pgjdbc connection don't, so a connection whose session may carry another principal's token has its token
+ * setting reset before it is checked out. So that one busy user can't hold every connection,
+ * <code>maxConnectionsPerPrincipal</code> bounds the connections checked out for any one token principal.
+ */
+public class EzPostgresDataSource implements DataSource, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EzPostgresDataSource.class);
+
+    public static final int DEFAULT_MIN_POOL_SIZE = 0;
+    public static final int DEFAULT_MAX_POOL_SIZE = 10;
+    public static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_CHECKOUT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 5;
+
+    /** Longest time between looking for idle connections to evict */
+    private static final long EVICTION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final String RESET_TOKEN_SQL = "reset " + StatementDecorator.SECURITY_TOKEN_PROPERTY_NAME;
+
+    private final EzPostgresDriver driver = new EzPostgresDriver();
+    private final Properties properties = new Properties();
+    private String url;
+    private int minPoolSize = DEFAULT_MIN_POOL_SIZE;
+    private int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    private long maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+    private long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+    private long checkoutTimeoutMillis = DEFAULT_CHECKOUT_TIMEOUT_MILLIS;
+    private int validationTimeoutSeconds = DEFAULT_VALIDATION_TIMEOUT_SECONDS;
+    private int loginTimeout;
+    private PrintWriter logWriter;
+    private boolean tokenAffinity;
+    private int maxConnectionsPerPrincipal;
+    private Provider<EzSecurityToken> tokenProvider;
+
+    private final AtomicLong affinityHits = new AtomicLong();
+    private final AtomicLong affinityMisses = new AtomicLong();
+
+    /** Checkout permits of principals with connections checked out, if they are bounded */
+    private final ConcurrentMap<String, Semaphore> principalPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    /** Idle connections, most recently returned first */
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private volatile Semaphore checkoutPermits;
+    private volatile boolean closed;
+    private ScheduledFuture<?> evictionTask;
+
+    /**
+     * Create an unconfigured DataSource. At least the URL must be set before requesting a connection.
+     */
+    public EzPostgresDataSource() {
+    }
+
+    /**
+     * Create a DataSource for a URL.
+     *
+     * @param url JDBC connection URL, starting with <code>jdbc:ezbake:</code>
+     * @param properties JDBC connection properties, as passed to {@link EzPostgresDriver#connect(String, Properties)}
+     */
+    public EzPostgresDataSource(String url, Properties properties) {
+        setUrl(url);
+        setProperties(properties);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Semaphore permits = start();
+        if (!tokenAffinity) {
+            return checkOut(permits, null);
+        }
+
+        EzSecurityToken token = tokenProvider.get();
+        if (token == null) {
+            throw new SQLException("Could not get security token from token provider");
+        }
+
+        return checkOut(permits, token);
+    }
+
+    /**
+     * Check out a connection that sets the given token rather than asking the configured token provider. With token
+     * affinity enabled, a connection whose session already carries the token is preferred. The token is not
+     * validated, so it must be one the caller has already validated.
+     *
+     * @param token token to set for every statement executed with the connection
+     * @return a pooled connection
+     * @throws SQLException if no connection could be checked out
+     */
+    public Connection getConnection(EzSecurityToken token) throws SQLException {
+        if (token == null) {
+            throw new SQLException("No security token was given");
+        }
+
+        EzPostgresConnection connection = checkOut(start(), tokenAffinity ? token : null);
+        connection.setSecurityToken(token);
+
+        return connection;
+    }
+
+    /**
+     * Check out a connection, waiting for one to become available if necessary.
+     *
+     * @param permits checkout permits
+     * @param token token to look for an affine connection with, or null for any connection
+     * @return a pooled connection
+     * @throws SQLException if no connection could be checked out
+     */
+    private EzPostgresConnection checkOut(Semaphore permits, EzSecurityToken token) throws SQLException {
+        Semaphore principalPermit = null;
+        if (token != null && maxConnectionsPerPrincipal > 0) {
+            String principal = SecurityTokens.getPrincipal(token);
+            if (principal != null) {
+                principalPermit = acquirePrincipalPermit(principal);
+            }
+        }
+
+        boolean success = false;
+        try {
+            acquire(permits, String.format("one of %d pooled connections", maxPoolSize));
+            try {
+                PooledConnection pooled = takeIdleConnection(token);
+                if (pooled == null) {
+                    pooled = openConnection();
+                }
+
+                EzPostgresConnection connection = new PooledConnectionDecorator(pooled, principalPermit);
+                success = true;
+
+                return connection;
+            } finally {
+                if (!success) {
+                    permits.release();
+                }
+            }
+        } finally {
+            if (!success && principalPermit != null) {
+                principalPermit.release();
+            }
+        }
+    }
+
+    private void acquire(Semaphore permits, String description) throws SQLException {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(checkoutTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for " + description, e);
+        }
+
+        if (!acquired) {
+            throw new SQLException(String.format(
+                    "Timed out after %d ms waiting for %s", checkoutTimeoutMillis, description));
+        }
+    }
+
+    /**
+     * Acquire one of a principal's checkout permits. If eviction forgot the principal's permits while waiting, the
+     * permit is given back and one of the principal's new permits acquired instead, so that permits from forgotten
+     * semaphores never count towards the bound.
+     *
+     * @param principal token principal checking out a connection
+     * @return the semaphore the permit was acquired from
+     * @throws SQLException if no permit could be acquired in time
+     */
+    private Semaphore acquirePrincipalPermit(String principal) throws SQLException {
+        while (true) {
+            Semaphore permits = getPrincipalPermits(principal);
+            acquire(permits, String.format(
+                    "one of %d connections allowed per principal", maxConnectionsPerPrincipal));
+
+            if (principalPermits.get(principal) == permits) {
+                return permits;
+            }
+
+            permits.release();
+        }
+    }
+
+    private Semaphore getPrincipalPermits(String principal) {
+        Semaphore permits = principalPermits.get(principal);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxConnectionsPerPrincipal, true);
+            permits = principalPermits.putIfAbsent(principal, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+
+        return permits;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections all use the configured user");
+    }
+
+    /**
+     * Close all idle connections and stop pooling. Connections that are checked out are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (evictionTask != null) {
+                evictionTask.cancel(false);
+                evictionTask = null;
+            }
+        }
+
+        closeIdleConnections();
+    }
+
+    /**
+     * @return number of open physical connections, idle or checked out
+     */
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * @return number of idle physical connections
+     */
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    /**
+     * @return number of connections checked out
+     */
+    public int getActiveConnections() {
+        Semaphore permits = checkoutPermits;
+
+        return permits == null ? 0 : maxPoolSize - permits.availablePermits();
+    }
+
+    /**
+     * @return number of checkouts that found an idle connection already carrying the requested token
+     */
+    public long getAffinityHits() {
+        return affinityHits.get();
+    }
+
+    /**
+     * @return number of checkouts with token affinity that had to use a connection carrying another token or none
+     */
+    public long getAffinityMisses() {
+        return affinityMisses.get();
+    }
+
+    /**
+     * @return fraction of checkouts with token affinity that were affinity hits, or 0 if there were none
+     */
+    public double getAffinityHitRate() {
+        long hits = affinityHits.get();
+        long total = hits + affinityMisses.get();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public synchronized void setUrl(String url) {
+        checkNotStarted();
+        this.url = url;
+    }
+
+    /**
+     * @return a copy of the JDBC connection properties
+     */
+    public synchronized Properties getProperties() {
+        return (Properties) properties.clone();
+    }
+
+    /**
+     * @param properties JDBC connection properties, copied into the DataSource's own properties
+     */
+    public synchronized void setProperties(Properties properties) {
+        checkNotStarted();
+        this.properties.putAll(properties);
+    }
+
+    /**
+     * @param name JDBC connection property name
+     * @param value JDBC connection property value
+     */
+    public synchronized void setProperty(String name, String value) {
+        checkNotStarted();
+        properties.setProperty(name, value);
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    public synchronized void setMinPoolSize(int minPoolSize) {
+        checkNotStarted();
+        this.minPoolSize = minPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public synchronized void setMaxPoolSize(int maxPoolSize) {
+        checkNotStarted();
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    public synchronized void setMaxIdleMillis(long maxIdleMillis) {
+        checkNotStarted();
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    public synchronized void setValidationIntervalMillis(long validationIntervalMillis) {
+        checkNotStarted();
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    public long getCheckoutTimeoutMillis() {
+        return checkoutTimeoutMillis;
+    }
+
+    public synchronized void setCheckoutTimeoutMillis(long checkoutTimeoutMillis) {
+        checkNotStarted();
+        this.checkoutTimeoutMillis = checkoutTimeoutMillis;
+    }
+
+    public boolean isTokenAffinity() {
+        return tokenAffinity;
+    }
+
+    /**
+     * @param tokenAffinity true to prefer connections whose session already carries the requesting user's token
+     */
+    public synchronized void setTokenAffinity(boolean tokenAffinity) {
+        checkNotStarted();
+        this.tokenAffinity = tokenAffinity;
+    }
+
+    public int getMaxConnectionsPerPrincipal() {
+        return maxConnectionsPerPrincipal;
+    }
+
+    /**
+     * @param maxConnectionsPerPrincipal most connections checked out at once for one token principal when token
+     * affinity is enabled, or 0 for no bound
+     */
+    public synchronized void setMaxConnectionsPerPrincipal(int maxConnectionsPerPrincipal) {
+        checkNotStarted();
+        this.maxConnectionsPerPrincipal = maxConnectionsPerPrincipal;
+    }
+
+    public int getValidationTimeoutSeconds() {
+        return validationTimeoutSeconds;
+    }
+
+    public synchronized void setValidationTimeoutSeconds(int validationTimeoutSeconds) {
+        checkNotStarted();
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+    }
+
+    @Override
+    public synchronized PrintWriter getLogWriter() throws SQLException {
+        return logWriter;
+    }
+
+    @Override
+    public synchronized void setLogWriter(PrintWriter printWriter) throws SQLException {
+        this.logWriter = printWriter;
+    }
+
+    @Override
+    public synchronized void setLoginTimeout(int seconds) throws SQLException {
+        checkNotStarted();
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public synchronized int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> tClass) throws SQLException {
+        if (tClass.isInstance(this)) {
+            return (T) this;
+        }
+
+        throw new SQLException(String.format("%s is not a wrapper for %s", getClass().getName(), tClass.getName()));
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return aClass.isInstance(this);
+    }
+
+    private void checkNotStarted() {
+        if (checkoutPermits != null) {
+            throw new IllegalStateException("The pool cannot be reconfigured once it has handed out connections");
+        }
+    }
+
+    /**
+     * Start the pool on first use, scheduling idle eviction and opening the minimum number of connections in the
+     * background.
+     *
+     * @return permits for checking out connections
+     * @throws SQLException if the pool is closed or has no URL
+     */
+    private synchronized Semaphore start() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed");
+        }
+
+        if (checkoutPermits == null) {
+            if (url == null) {
+                throw new SQLException("No URL was configured for the connection pool");
+            }
+
+            if (minPoolSize > maxPoolSize) {
+                throw new SQLException(String.format(
+                        "Minimum pool size %d is larger than maximum pool size %d", minPoolSize, maxPoolSize));
+            }
+
+            if (loginTimeout > 0) {
+                properties.setProperty("loginTimeout", Integer.toString(loginTimeout));
+            }
+
+            if (tokenAffinity) {
+                Properties providerProperties = (Properties) properties.clone();
+                providerProperties.putAll(driver.getURLQueryParameterProperties(url));
+                tokenProvider = driver.createTokenProvider(providerProperties);
+            }
+
+            long interval = Math.max(1, Math.min(EVICTION_INTERVAL_MILLIS, maxIdleMillis / 2));
+            evictionTask = BackgroundScheduler.get().scheduleWithFixedDelay(
+                    new Evictor(this), 0, interval, TimeUnit.MILLISECONDS);
+            checkoutPermits = new Semaphore(maxPoolSize, true);
+        }
+
+        return checkoutPermits;
+    }
+
+    /**
+     * Take an idle connection whose session carries the token, or else the most recently used idle connection.
+     * Connections that have been idle for a while are validated first, and closed if they fail.
+     *
+     * @param token token to look for, or null to take any connection
+     * @return an idle connection, or null if there are none
+     */
+    private PooledConnection takeIdleConnection(EzSecurityToken token) {
+        if (token != null) {
+            for (PooledConnection pooled : idleConnections) {
+                if (pooled.connection.getTokenPropertySetter().carries(token) && idleConnections.remove(pooled)
+                        && isUsable(pooled)) {
+                    affinityHits.incrementAndGet();
+                    return pooled;
+                }
+            }
+
+            affinityMisses.incrementAndGet();
+        }
+
+        PooledConnection pooled;
+        while ((pooled = idleConnections.pollFirst()) != null) {
+            if (isUsable(pooled) && (token == null || resetOtherPrincipal(pooled, token))) {
+                return pooled;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reset the token setting of an idle connection, kept by token affinity, unless its session is known to carry a
+     * token of the same principal. The connection is closed if it can't be reset.
+     *
+     * @param pooled connection taken from the idle connections
+     * @param token token of the user checking out the connection
+     * @return true if the connection can be checked out
+     */
+    private boolean resetOtherPrincipal(PooledConnection pooled, EzSecurityToken token) {
+        EzSecurityToken applied = pooled.connection.getTokenPropertySetter().getAppliedToken();
+        String principal = SecurityTokens.getPrincipal(token);
+        if (applied != null && principal != null && principal.equals(SecurityTokens.getPrincipal(applied))) {
+            return true;
+        }
+
+        try {
+            resetToken(pooled.connection);
+            return true;
+        } catch (SQLException e) {
+            logger.warn("Discarding pooled connection whose token could not be reset", e);
+            discard(pooled);
+
+            return false;
+        }
+    }
+
+    /**
+     * Reset the session's <code>ezbake.token</code> setting.
+     *
+     * @param connection connection to reset
+     * @throws SQLException if the setting could not be reset
+     */
+    private static void resetToken(ConnectionDecorator connection) throws SQLException {
+        connection.getTokenPropertySetter().invalidate();
+        Statement statement = connection.getWrappedConnection().createStatement();
+        try {
+            statement.execute(RESET_TOKEN_SQL);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Validate an idle connection if it has been idle for a while, closing it if it fails.
+     *
+     * @param pooled connection taken from the idle connections
+     * @return true if the connection can be checked out
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsedMillis <= validationIntervalMillis || isValid(pooled)) {
+            return true;
+        }
+
+        logger.debug("Discarding pooled connection that failed validation");
+        discard(pooled);
+
+        return false;
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.connection.getWrappedConnection().isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        Connection connection = driver.connect(url, properties);
+        totalConnections.incrementAndGet();
+
+        boolean success = false;
+        try {
+            PooledConnection pooled = new PooledConnection((ConnectionDecorator) connection);
+            success = true;
+
+            return pooled;
+        } finally {
+            if (!success) {
+                totalConnections.decrementAndGet();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Return a checked out connection to the pool, or close it if it can't be reset or the pool is closed.
+     *
+     * @param pooled connection being returned
+     */
+    private void checkIn(PooledConnection pooled, Semaphore principalPermit) {
+        if (principalPermit != null) {
+            principalPermit.release();
+        }
+
+        try {
+            if (closed || !reset(pooled)) {
+                discard(pooled);
+                return;
+            }
+
+            pooled.lastUsedMillis = System.currentTimeMillis();
+            idleConnections.offerFirst(pooled);
+
+            // The pool may have closed while the connection was being reset
+            if (closed) {
+                closeIdleConnections();
+            }
+        } finally {
+            checkoutPermits.release();
+        }
+    }
+
+    /**
+     * Restore a returned connection's session to the state a new connection would have.
+     *
+     * @param pooled connection being returned
+     * @return true if the connection was reset, false if it should be closed instead
+     */
+    private boolean reset(PooledConnection pooled) {
+        ConnectionDecorator connection = pooled.connection;
+        Connection realConnection = connection.getWrappedConnection();
+
+        try {
+            if (realConnection.isClosed()) {
+                return false;
+            }
+
+            if (!realConnection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+
+            if (realConnection.isReadOnly()) {
+                realConnection.setReadOnly(false);
+            }
+
+            if (realConnection.getTransactionIsolation() != pooled.defaultTransactionIsolation) {
+                realConnection.setTransactionIsolation(pooled.defaultTransactionIsolation);
+            }
+
+            realConnection.clearWarnings();
+
+            // With token affinity the token stays for the next user of the same token
+            if (!tokenAffinity) {
+                resetToken(connection);
+            }
+
+            return true;
+        } catch (SQLException e) {
+            logger.warn("Discarding pooled connection that could not be reset", e);
+
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            logger.debug("Error closing pooled connection", e);
+        }
+    }
+
+    private void closeIdleConnections() {
+        PooledConnection pooled;
+        while ((pooled = idleConnections.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    /**
+     * Close connections that have been idle too long, then top the pool back up to its minimum size. Permits of
+     * principals with no connections checked out are forgotten.
+     */
+    private void evict() {
+        for (Map.Entry<String, Semaphore> entry : principalPermits.entrySet()) {
+            // Holding every permit keeps anyone from acquiring one while the semaphore is forgotten
+            Semaphore permits = entry.getValue();
+            if (permits.tryAcquire(maxConnectionsPerPrincipal)) {
+                try {
+                    principalPermits.remove(entry.getKey(), permits);
+                } finally {
+                    permits.release(maxConnectionsPerPrincipal);
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        int excess = totalConnections.get() - minPoolSize;
+
+        // Least recently used connections are at the end
+        Iterator<PooledConnection> iterator = idleConnections.descendingIterator();
+        while (excess > 0 && iterator.hasNext()) {
+            PooledConnection pooled = iterator.next();
+            if (now - pooled.lastUsedMillis > maxIdleMillis && idleConnections.remove(pooled)) {
+                discard(pooled);
+                excess--;
+            }
+        }
+
+        while (!closed && totalConnections.get() < minPoolSize) {
+            try {
+                PooledConnection pooled = openConnection();
+                pooled.lastUsedMillis = System.currentTimeMillis();
+                idleConnections.offerLast(pooled);
+            } catch (SQLException e) {
+                logger.warn("Could not open connection to fill the pool to its minimum size", e);
+                break;
+            }
+        }
+
+        if (closed) {
+            closeIdleConnections();
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    private static class PooledConnection {
+        final ConnectionDecorator connection;
+        final int defaultTransactionIsolation;
+        volatile long lastUsedMillis;
+
+        PooledConnection(ConnectionDecorator connection) throws SQLException {
+            this.connection = connection;
+            this.defaultTransactionIsolation = connection.getWrappedConnection().getTransactionIsolation();
+        }
+    }
+
+    /**
+     * The connection handed to a caller for one checkout. Closing it closes the statements opened through it and
+     * returns the physical connection to the pool, after which this object behaves like a closed connection.
+     */
+    private class PooledConnectionDecorator extends ConnectionDecorator {
+        private final PooledConnection pooled;
+        private final Semaphore principalPermit;
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        /** Statements opened during this checkout that haven't been closed */
+        private final Set<StatementDecorator> openStatements = new HashSet<StatementDecorator>();
+
+        PooledConnectionDecorator(PooledConnection pooled, Semaphore principalPermit) {
+            super(pooled.connection.getWrappedConnection(), pooled.connection.getTokenProvider(),
+                    pooled.connection.getTokenPropertySetter(), pooled.connection.getQueryLog(),
+                    pooled.connection.getBatchRewriteRows());
+            this.pooled = pooled;
+            this.principalPermit = principalPermit;
+        }
+
+        @Override
+        <T extends StatementDecorator> T opened(T statement) throws SQLException {
+            synchronized (openStatements) {
+                if (!returned.get()) {
+                    openStatements.add(statement);
+                    return statement;
+                }
+            }
+
+            statement.close();
+            throw new SQLException("Connection is closed");
+        }
+
+        @Override
+        void closed(StatementDecorator statement) {
+            synchronized (openStatements) {
+                openStatements.remove(statement);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (returned.compareAndSet(false, true)) {
+                detach();
+                closeStatements();
+                checkIn(pooled, principalPermit);
+            }
+        }
+
+        /**
+         * Close the statements left open, so that they can't be used once the physical connection has been checked out
+         * again. Closing a statement also closes its result sets.
+         */
+        private void closeStatements() {
+            List<StatementDecorator> statements;
+            synchronized (openStatements) {
+                statements = new ArrayList<StatementDecorator>(openStatements);
+                openStatements.clear();
+            }
+
+            if (!statements.isEmpty()) {
+                logger.debug("Closing {} statements left open on a returned pooled connection", statements.size());
+            }
+
+            for (StatementDecorator statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    logger.debug("Error closing statement left open on a pooled connection", e);
+                }
+            }
+        }
+
+        @Override
+        public void abort(Executor executor) throws SQLException {
+            // An aborted connection fails its reset and is discarded
+            super.abort(executor);
+            close();
+        }
+    }
+
+    /**
+     * Runs eviction for a pool without keeping a pool that was never closed from being garbage collected.
+     */
+    private static class Evictor implements Runnable {
+        private final WeakReference<EzPostgresDataSource> dataSource;
+
+        Evictor(EzPostgresDataSource dataSource) {
+            this.dataSource = new WeakReference<EzPostgresDataSource>(dataSource);
+        }
+
+        @Override
+        public void run() {
+            EzPostgresDataSource pool = dataSource.get();
+            if (pool == null) {
+                // Stops this task from being rescheduled
+                throw new IllegalStateException("Connection pool was garbage collected");
+            }
+
+            try {
+                pool.evict();
+            } catch (RuntimeException e) {
+                logger.warn("Error evicting idle pooled connections", e);
+            }
+        }
+    }
+}
@@ -15,9 +15,7 @@
 package ezbake.data.postgres;
 
 import ezbake.base.thrift.EzSecurityToken;
-import ezbake.configuration.EzConfiguration;
 import ezbake.configuration.EzConfigurationLoaderException;
-import ezbake.security.client.EzbakeSecurityClient;
 import ezbake.security.common.core.EzSecurityClient;
 import ezbake.thrift.ThriftUtils;
 import org.apache.thrift.TException;
@@ -26,6 +24,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Provider;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URLDecoder;
 import java.sql.Connection;
@@ -34,7 +33,13 @@ import java.sql.DriverManager;
 import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Wraps a real Driver with one that returns Connections decorated with TokenPropertyConnectionDecorator.
@@ -44,18 +49,43 @@ import java.util.Properties;
  * <p />
  * The token passed to the database is configurable by the properties <code>ezbake.token.provider</code> (the fully
  * qualified name of a provider; known options are: <code>ezbake.data.postgres.SpringSecurityContextTokenProvider</code>
- * - default, <code>ezbake.data.postgres.ApplicationTokenProvider</code>, and
+ * - default, <code>ezbake.data.postgres.ApplicationTokenProvider</code>,
+ * <code>ezbake.data.postgres.ScopedTokenProvider</code> (the token bound with {@link EzPostgresTokens#bind}), and
  * <code>ezbake.data.postgres.ExplicitTokenProvider</code>). If <code>ExplicitTokenProvider</code> is used, then the
- * property <code>ezbake.token</code> must contain a base64 encoded EzSecurityToken.
+ * property <code>ezbake.token</code> must contain a base64 encoded EzSecurityToken. A provider must have a public
+ * constructor taking either the EzSecurityClient or a <code>javax.inject.Provider&lt;EzSecurityClient&gt;</code>; with
+ * the latter, the security client is only created once the provider asks for it.
  * <p />
- * The query parameters <code>ezbakeTokenProvider</code> and <code>ezbakeToken</code> may also be passed to the
- * connection URL. If <code>ezbakeToken</code> is passed, it must be URL-escaped. Unfortunately, different database
- * implementations pass properties through the connection URL differently (for example, Derby and H2 both pass pairs
- * after a ';' instead of '?'), so URL property passing is known to work only with PostgreSQL.
+ * If the property <code>ezbakeTokenPiggyback</code> is <code>true</code>, plain statements send the token-setting
+ * command in the same query as their own SQL, saving a round trip whenever the token has to be set. If the property
+ * <code>ezbakeTokenHandles</code> is <code>true</code>, each distinct token is registered once per connection with the
+ * visibility extension's <code>register_token</code> function, and afterwards only its short handle is sent. If the
+ * property <code>ezbakeTokenTransactionScoped</code> is <code>true</code>, connections that aren't in auto-commit mode
+ * set the token once at the start of each transaction, local to that transaction.
+ * <p />
+ * If the property <code>ezbakeQueryStatistics</code> is <code>true</code>, each statement's execution is recorded in
+ * the {@link QueryStatistics} of its SQL fingerprint. If the property <code>ezbakeSlowQueryMillis</code> is set,
+ * statements taking at least that many milliseconds are logged. See {@link QueryLog}.
+ * <p />
+ * If the property <code>ezbakeBatchRewriteRows</code> is set to N of at least 2, batches of statements prepared as a
+ * simple <code>INSERT ... VALUES (?, ...)</code> are executed as INSERTs of up to N rows each. See {@link InsertBatch}.
+ * <p />
+ * The query parameters <code>ezbakeTokenProvider</code>, <code>ezbakeToken</code>, <code>ezbakeTokenPiggyback</code>,
+ * <code>ezbakeTokenHandles</code>, <code>ezbakeTokenTransactionScoped</code>, <code>ezbakeQueryStatistics</code>,
+ * <code>ezbakeSlowQueryMillis</code> and <code>ezbakeBatchRewriteRows</code> may also be passed to the connection
+ * URL. If <code>ezbakeToken</code> is passed, it must be URL-escaped. Unfortunately,
+ * different database implementations pass properties through the connection URL differently (for example, Derby and H2
+ * both pass pairs after a ';' instead of '?'), so URL property passing is known to work only with PostgreSQL.
  * <p />
  * This driver manages EzBake security clients that can be used across different connections. The properties passed to
  * the client are taken from the Properties passed to connect(). If not Properties are given, then they are read using
- * EzConfiguration.
+ * EzConfiguration. One client is kept per distinct security configuration, that is, per set of EzBake configuration
+ * properties a client may read (those starting with <code>ezbake.</code>, <code>application.</code>,
+ * <code>service.</code>, <code>security.</code>, <code>thrift.</code> or <code>zookeeper.</code>) and
+ * <code>ezbakeSecurityClient</code>. Other properties don't select a client. The property
+ * <code>ezbakeSecurityClient</code> names the class of client to create, which must implement EzSecurityClient and
+ * have a constructor taking the properties. It defaults to <code>EzbakeSecurityClient</code>. Since the client decides
+ * which tokens are trusted, it can only be set in the properties passed to connect(), never in the connection URL.
  */
 public class EzPostgresDriver implements Driver {
 
@@ -68,14 +98,56 @@ public class EzPostgresDriver implements Driver {
     /** Property name for explicit token */
     public static final String EZBAKE_TOKEN_PROPERTY = "ezbakeToken";
 
+    /** Property name for sending the token in the same query as simple statements */
+    public static final String EZBAKE_TOKEN_PIGGYBACK_PROPERTY = "ezbakeTokenPiggyback";
+
+    /** Property name for registering tokens in the backend and setting short handles instead */
+    public static final String EZBAKE_TOKEN_HANDLES_PROPERTY = "ezbakeTokenHandles";
+
+    /** Property name for setting the token once per transaction when not in auto-commit mode */
+    public static final String EZBAKE_TOKEN_TRANSACTION_SCOPED_PROPERTY = "ezbakeTokenTransactionScoped";
+
+    /** Property name for recording per-fingerprint statement statistics */
+    public static final String EZBAKE_QUERY_STATISTICS_PROPERTY = "ezbakeQueryStatistics";
+
+    /** Property name for the execution time in milliseconds above which statements are logged */
+    public static final String EZBAKE_SLOW_QUERY_MILLIS_PROPERTY = "ezbakeSlowQueryMillis";
+
+    /** Property name for the number of rows to insert with each statement of a rewritten INSERT batch */
+    public static final String EZBAKE_BATCH_REWRITE_ROWS_PROPERTY = "ezbakeBatchRewriteRows";
+
+    /** Property name for the class of security client to use */
+    public static final String EZBAKE_SECURITY_CLIENT_PROPERTY = "ezbakeSecurityClient";
+
     /** Encoding used to URL-encoded query parameters */
     public static final String URL_ENCODING = "UTF-8";
 
     private static final String DEFAULT_TOKEN_PROVIDER = SpringSecurityContextTokenProvider.class.getCanonicalName();
 
+    /** Properties that may be passed as connection URL query parameters */
+    private static final Set<String> URL_QUERY_PROPERTIES = new HashSet<String>(Arrays.asList(
+            EZBAKE_TOKEN_PROVIDER_PROPERTY, EZBAKE_TOKEN_PROPERTY, EZBAKE_TOKEN_PIGGYBACK_PROPERTY,
+            EZBAKE_TOKEN_HANDLES_PROPERTY, EZBAKE_TOKEN_TRANSACTION_SCOPED_PROPERTY, EZBAKE_QUERY_STATISTICS_PROPERTY,
+            EZBAKE_SLOW_QUERY_MILLIS_PROPERTY, EZBAKE_BATCH_REWRITE_ROWS_PROPERTY));
+
+    /** Lower-cased query parameters that carry credentials, which must not be remembered with their URL */
+    private static final Set<String> CREDENTIAL_QUERY_PROPERTIES = new HashSet<String>(Arrays.asList(
+            EZBAKE_TOKEN_PROPERTY.toLowerCase(Locale.ROOT), "password", "sslpassword"));
+
     private static final Logger logger = LoggerFactory.getLogger(EzPostgresDriver.class);
 
-    private EzSecurityClient securityClient;
+    /** Most parsed URLs to remember before forgetting them all */
+    private static final int MAX_PARSED_URLS = 64;
+
+    /** Real driver that connections are delegated to. Can't use the driver manager with an uberjar. */
+    private static final Driver realDriver = new org.postgresql.Driver();
+
+    /** Parsed connection URLs without credentials, so that repeated connects to the same URL don't parse it again */
+    private static final ConcurrentMap<String, ParsedURL> parsedURLs = new ConcurrentHashMap<String, ParsedURL>();
+
+    /** Resolved token provider constructors by class name */
+    private static final ConcurrentMap<String, Constructor<?>> providerConstructors =
+            new ConcurrentHashMap<String, Constructor<?>>();
 
     static {
         try {
@@ -91,13 +163,140 @@ public class EzPostgresDriver implements Driver {
             throw new SQLException(String.format("JDBC URL %s doesn't start with jdbc:ezbake:", url));
         }
 
-        Properties queryProperties = getURLQueryParameterProperties(url);
+        EzPostgresTracer tracer = EzPostgresTracer.getInstance();
+        if (!tracer.isSampled(EzPostgresTracer.Operation.CONNECT)) {
+            return connect(url, properties, null);
+        }
+
+        EzPostgresTracer.Span span = tracer.startSpan(EzPostgresTracer.Operation.CONNECT);
+        try {
+            return connect(url, properties, span);
+        } catch (SQLException | RuntimeException e) {
+            span.recordError(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Open a connection, timing each phase on a span.
+     *
+     * @param url JDBC connection URL
+     * @param properties JDBC connection properties
+     * @param span span of the connect, or null if it isn't traced
+     * @return a decorated connection
+     * @throws SQLException if the connection could not be opened
+     */
+    private Connection connect(String url, Properties properties, EzPostgresTracer.Span span) throws SQLException {
+        long time = span != null ? System.nanoTime() : 0;
+
+        ParsedURL parsedURL = parseURL(url);
         Properties cloneProperties = (Properties) properties.clone();
-        cloneProperties.putAll(queryProperties);
+        cloneProperties.putAll(parsedURL.queryProperties);
+        time = endPhase(span, EzPostgresTracer.PARSE_URL_NANOS_ATTRIBUTE, time);
 
-        Provider<EzSecurityToken> tokenProvider;
+        Provider<EzSecurityToken> tokenProvider = createTokenProvider(cloneProperties);
+        time = endPhase(span, EzPostgresTracer.TOKEN_PROVIDER_NANOS_ATTRIBUTE, time);
+
+        Connection realConnection = realDriver.connect(parsedURL.realURL, cloneProperties);
+        if (realConnection == null) {
+            throw new SQLException(String.format("JDBC URL %s is not a PostgreSQL URL", url));
+        }
+        time = endPhase(span, EzPostgresTracer.REAL_CONNECT_NANOS_ATTRIBUTE, time);
+
+        Connection connection = new ConnectionDecorator(realConnection, tokenProvider, cloneProperties);
+        endPhase(span, EzPostgresTracer.DECORATE_NANOS_ATTRIBUTE, time);
+
+        return connection;
+    }
+
+    /**
+     * Record how long a phase of a connect took.
+     *
+     * @param span span of the connect, or null if it isn't traced
+     * @param attribute attribute to record the phase's nanoseconds in
+     * @param start when the phase started
+     * @return when the phase ended, which is when the next one starts
+     */
+    private static long endPhase(EzPostgresTracer.Span span, String attribute, long start) {
+        if (span == null) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        span.setAttribute(attribute, now - start);
+
+        return now;
+    }
+
+    /**
+     * Parse a connection URL, or return it as parsed before. URLs carrying credentials are parsed every time rather
+     * than remembered, so that tokens and passwords don't outlive their connections.
+     *
+     * @param url JDBC connection URL
+     * @return the parsed URL
+     */
+    ParsedURL parseURL(String url) {
+        ParsedURL parsedURL = parsedURLs.get(url);
+        if (parsedURL == null) {
+            parsedURL = new ParsedURL("jdbc:" + unwrapURL(url), getURLQueryParameterProperties(url));
+            if (carriesCredentials(url)) {
+                return parsedURL;
+            }
+
+            // Start over rather than grow without bound if the URLs are all different
+            if (parsedURLs.size() >= MAX_PARSED_URLS) {
+                parsedURLs.clear();
+            }
+            parsedURLs.putIfAbsent(url, parsedURL);
+        }
+
+        return parsedURL;
+    }
+
+    /**
+     * @param url JDBC connection URL
+     * @return whether the URL has been parsed and remembered
+     */
+    static boolean isParsed(String url) {
+        return parsedURLs.containsKey(url);
+    }
+
+    /**
+     * Returns whether a connection URL has a query parameter holding a token or password, for this driver or the real
+     * one.
+     *
+     * @param url JDBC connection URL
+     * @return true if the URL carries credentials
+     */
+    private static boolean carriesCredentials(String url) {
+        int queryInd = url.indexOf('?');
+        if (queryInd < 0) {
+            return false;
+        }
+
+        for (String parameter : url.substring(queryInd + 1).split("&")) {
+            int ind = parameter.indexOf('=');
+            String name = ind >= 0 ? parameter.substring(0, ind) : parameter;
+            if (CREDENTIAL_QUERY_PROPERTIES.contains(name.toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Create the token provider requested by JDBC connection properties.
+     *
+     * @param properties JDBC connection properties, including any taken from the URL
+     * @return a token provider
+     * @throws SQLException if the token provider could not be created
+     */
+    Provider<EzSecurityToken> createTokenProvider(Properties properties) throws SQLException {
         try {
-            tokenProvider = getTokenProvider(cloneProperties);
+            return getTokenProvider(properties);
         } catch (ClassNotFoundException e) {
             throw new SQLException(e);
         } catch (NoSuchMethodException e) {
@@ -113,13 +312,6 @@ public class EzPostgresDriver implements Driver {
         } catch (EzConfigurationLoaderException e) {
             throw new SQLException(e);
         }
-
-        String realURL = "jdbc:" + unwrapURL(url);
-        // Can't use the driver manager with an uberjar
-        Driver realDriver = new org.postgresql.Driver();
-        Connection realConnection = realDriver.connect(realURL, cloneProperties);
-
-        return new ConnectionDecorator(realConnection, tokenProvider);
     }
 
     @Override
@@ -197,7 +389,7 @@ public class EzPostgresDriver implements Driver {
             if (ind >= 0) {
                 String k = p.substring(0, ind);
 
-                if (k.equals(EZBAKE_TOKEN_PROVIDER_PROPERTY) || k.equals(EZBAKE_TOKEN_PROPERTY)) {
+                if (URL_QUERY_PROPERTIES.contains(k)) {
                     String v = null;
                     try {
                         v = URLDecoder.decode(p.substring(ind + 1), URL_ENCODING);
@@ -223,18 +415,6 @@ public class EzPostgresDriver implements Driver {
         return DriverManager.getDriver(unwrapURL(url));
     }
 
-    private synchronized EzSecurityClient getSecurityClient(Properties properties) throws
-            EzConfigurationLoaderException {
-        if (securityClient == null) {
-            if (properties == null) {
-                properties = new EzConfiguration().getProperties();
-            }
-            securityClient = new EzbakeSecurityClient(properties);
-        }
-
-        return securityClient;
-    }
-
     /**
      * Returns the requested token provider based on JDBC connection properties. The properties are a combination of
      * properties passed to the DriverManager and are possibly overridden by query parameters in the JDBC connection
@@ -263,14 +443,70 @@ public class EzPostgresDriver implements Driver {
                         "%s requires %s to be set", ExplicitTokenProvider.class.getName(), EZBAKE_TOKEN_PROPERTY));
             }
 
-            tokenProvider = new ExplicitTokenProvider(getSecurityClient(properties),
+            tokenProvider = new ExplicitTokenProvider(SecurityClients.lazy(properties),
                     ThriftUtils.deserializeFromBase64(EzSecurityToken.class, tokenValue));
         } else {
-            tokenProvider = (Provider<EzSecurityToken>) Class.forName(tokenProviderProperty)
-                    .getConstructor(EzSecurityClient.class)
-                    .newInstance(getSecurityClient(properties));
+            Constructor<?> constructor = providerConstructors.get(tokenProviderProperty);
+            if (constructor == null) {
+                constructor = getProviderConstructor(loadClass(tokenProviderProperty, Provider.class));
+                providerConstructors.putIfAbsent(tokenProviderProperty, constructor);
+            }
+
+            if (constructor.getParameterTypes()[0] == Provider.class) {
+                tokenProvider = (Provider<EzSecurityToken>) constructor.newInstance(SecurityClients.lazy(properties));
+            } else {
+                tokenProvider = (Provider<EzSecurityToken>) constructor.newInstance(SecurityClients.get(properties));
+            }
         }
 
         return tokenProvider;
     }
+
+    /**
+     * Loads a class named by a connection property without initializing it, so that no code of a class that isn't the
+     * expected type runs.
+     *
+     * @param className name of the class
+     * @param type type the class must have
+     * @param <T> type the class must have
+     * @return the class
+     * @throws ClassNotFoundException if the class is not found or doesn't have the type
+     */
+    static <T> Class<? extends T> loadClass(String className, Class<T> type) throws ClassNotFoundException {
+        Class<?> loaded = Class.forName(className, false, EzPostgresDriver.class.getClassLoader());
+        if (!type.isAssignableFrom(loaded)) {
+            throw new ClassNotFoundException(String.format("%s is not a %s", className, type.getName()));
+        }
+
+        return loaded.asSubclass(type);
+    }
+
+    /**
+     * Returns the constructor of a token provider, preferring one that takes a provider of the security client, so
+     * that the client is only created if the token provider asks for it.
+     *
+     * @param providerClass token provider class
+     * @return a constructor taking either a <code>Provider&lt;EzSecurityClient&gt;</code> or an EzSecurityClient
+     * @throws NoSuchMethodException if the class has neither constructor
+     */
+    private static Constructor<?> getProviderConstructor(Class<?> providerClass) throws NoSuchMethodException {
+        try {
+            return providerClass.getConstructor(Provider.class);
+        } catch (NoSuchMethodException e) {
+            return providerClass.getConstructor(EzSecurityClient.class);
+        }
+    }
+
+    /**
+     * A connection URL split into the URL for the real driver and the driver's own query parameters.
+     */
+    static class ParsedURL {
+        final String realURL;
+        final Properties queryProperties;
+
+        ParsedURL(String realURL, Properties queryProperties) {
+            this.realURL = realURL;
+            this.queryProperties = queryProperties;
+        }
+    }
 }
@@ -0,0 +1,275 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of all connections made by the driver: latency histograms of each phase of executing a statement, so a slow
+ * statement can be attributed to getting the token, serializing it, setting it or executing the statement itself, and
+ * counts of statements, token sets and token provider failures. The token providers that cache tokens also record
+ * their cache hits and misses and how long their fetches from the security client take.
+ * <p />
+ * The metrics are published as the MXBean <code>ezbake.data.postgres:type=EzPostgresMetrics</code> and to every
+ * {@link EzPostgresMetricsRegistry} found on the class path. Recording is lock-free and allocates nothing.
+ */
+public final class EzPostgresMetrics implements EzPostgresMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(EzPostgresMetrics.class);
+
+    /** Name the metrics are registered under with the platform MBean server */
+    public static final String OBJECT_NAME = "ezbake.data.postgres:type=EzPostgresMetrics";
+
+    /** The phases of executing a statement that are timed */
+    public enum Phase {
+        /** Asking the token provider for a token */
+        TOKEN_PROVIDER,
+
+        /** Serializing a token that wasn't already serialized */
+        TOKEN_SERIALIZE,
+
+        /** Executing a statement that sets the token property */
+        TOKEN_SET,
+
+        /** Executing the statement itself */
+        EXECUTE,
+
+        /**
+         * Fetching a token from the security client for a caching token provider, which statements only wait for on
+         * a cache miss
+         */
+        TOKEN_FETCH
+    }
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+    private final LatencyHistogram tokenProviderLatency = new LatencyHistogram();
+    private final LatencyHistogram tokenSerializeLatency = new LatencyHistogram();
+    private final LatencyHistogram tokenSetLatency = new LatencyHistogram();
+    private final LatencyHistogram executeLatency = new LatencyHistogram();
+    private final LatencyHistogram tokenFetchLatency = new LatencyHistogram();
+
+    private final AtomicLong tokenSets = new AtomicLong();
+    private final AtomicLong tokenSetsElided = new AtomicLong();
+    private final AtomicLong tokenProviderFailures = new AtomicLong();
+    private final AtomicLong tokenCacheHits = new AtomicLong();
+    private final AtomicLong tokenCacheMisses = new AtomicLong();
+
+    private EzPostgresMetrics() {
+        histograms.put(Phase.TOKEN_PROVIDER, tokenProviderLatency);
+        histograms.put(Phase.TOKEN_SERIALIZE, tokenSerializeLatency);
+        histograms.put(Phase.TOKEN_SET, tokenSetLatency);
+        histograms.put(Phase.EXECUTE, executeLatency);
+        histograms.put(Phase.TOKEN_FETCH, tokenFetchLatency);
+    }
+
+    /**
+     * @return the driver's metrics, published on first use
+     */
+    public static EzPostgresMetrics getInstance() {
+        return Holder.METRICS;
+    }
+
+    /**
+     * @param phase a phase of executing a statement
+     * @return the latency histogram of the phase
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTokenProviderLatency() {
+        return tokenProviderLatency.getSnapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTokenSerializeLatency() {
+        return tokenSerializeLatency.getSnapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTokenSetLatency() {
+        return tokenSetLatency.getSnapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getExecuteLatency() {
+        return executeLatency.getSnapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTokenFetchLatency() {
+        return tokenFetchLatency.getSnapshot();
+    }
+
+    @Override
+    public long getStatements() {
+        return executeLatency.getCount();
+    }
+
+    @Override
+    public long getTokenSets() {
+        return tokenSets.get();
+    }
+
+    @Override
+    public long getTokenSetsElided() {
+        return tokenSetsElided.get();
+    }
+
+    @Override
+    public long getTokenProviderFailures() {
+        return tokenProviderFailures.get();
+    }
+
+    @Override
+    public long getTokenCacheHits() {
+        return tokenCacheHits.get();
+    }
+
+    @Override
+    public long getTokenCacheMisses() {
+        return tokenCacheMisses.get();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        tokenSets.set(0);
+        tokenSetsElided.set(0);
+        tokenProviderFailures.set(0);
+        tokenCacheHits.set(0);
+        tokenCacheMisses.set(0);
+    }
+
+    /**
+     * Record how long the token provider took to provide a token.
+     *
+     * @param startNanos time the provider was asked, from {@link System#nanoTime()}
+     */
+    void recordTokenProvider(long startNanos) {
+        tokenProviderLatency.recordSince(startNanos);
+    }
+
+    /**
+     * Count a token provider that failed to provide a token.
+     */
+    void recordTokenProviderFailure() {
+        tokenProviderFailures.incrementAndGet();
+    }
+
+    /**
+     * Count a token a caching token provider answered from its cache.
+     */
+    void recordTokenCacheHit() {
+        tokenCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Count a token a caching token provider had to fetch, or wait for another thread to fetch.
+     */
+    void recordTokenCacheMiss() {
+        tokenCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Record how long a caching token provider's fetch from the security client took.
+     *
+     * @param startNanos time the fetch started, from {@link System#nanoTime()}
+     */
+    void recordTokenFetch(long startNanos) {
+        tokenFetchLatency.recordSince(startNanos);
+    }
+
+    /**
+     * Record how long serializing a token took.
+     *
+     * @param startNanos time serializing started, from {@link System#nanoTime()}
+     */
+    void recordTokenSerialize(long startNanos) {
+        tokenSerializeLatency.recordSince(startNanos);
+    }
+
+    /**
+     * Record how long the statement setting the token took.
+     *
+     * @param startNanos time the statement was sent, from {@link System#nanoTime()}
+     */
+    void recordTokenSet(long startNanos) {
+        tokenSets.incrementAndGet();
+        tokenSetLatency.recordSince(startNanos);
+    }
+
+    /**
+     * Count a token set that was sent in the same query as a statement, so took no time of its own.
+     */
+    void recordTokenSetPiggybacked() {
+        tokenSets.incrementAndGet();
+    }
+
+    /**
+     * Count a token set that was skipped because the session already carried the token.
+     */
+    void recordTokenSetElided() {
+        tokenSetsElided.incrementAndGet();
+    }
+
+    /**
+     * Record how long executing a statement took.
+     *
+     * @param nanos time taken executing the statement
+     */
+    void recordExecute(long nanos) {
+        executeLatency.record(nanos);
+    }
+
+    private static class Holder {
+        static final EzPostgresMetrics METRICS = publish(new EzPostgresMetrics());
+
+        private static EzPostgresMetrics publish(EzPostgresMetrics metrics) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                // Another copy of the driver, in another class loader, may have registered first
+                logger.warn("Could not register driver metrics with JMX", e);
+            }
+
+            try {
+                for (EzPostgresMetricsRegistry registry : ServiceLoader.load(EzPostgresMetricsRegistry.class)) {
+                    try {
+                        registry.register(metrics);
+                    } catch (RuntimeException e) {
+                        logger.warn("Metrics registry {} failed to register driver metrics", registry, e);
+                    }
+                }
+            } catch (ServiceConfigurationError e) {
+                logger.warn("Could not load metrics registries", e);
+            }
+
+            return metrics;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+/**
+ * JMX view of the driver's {@link EzPostgresMetrics}. Latencies are in nanoseconds.
+ */
+public interface EzPostgresMetricsMXBean {
+
+    /**
+     * @return latency of asking the token provider for a token
+     */
+    LatencyHistogram.Snapshot getTokenProviderLatency();
+
+    /**
+     * @return latency of serializing tokens that weren't already serialized
+     */
+    LatencyHistogram.Snapshot getTokenSerializeLatency();
+
+    /**
+     * @return latency of the statements that set the token property
+     */
+    LatencyHistogram.Snapshot getTokenSetLatency();
+
+    /**
+     * @return latency of executing statements, not counting setting the token before them
+     */
+    LatencyHistogram.Snapshot getExecuteLatency();
+
+    /**
+     * @return latency of caching token providers' fetches from the security client, in the foreground or background
+     */
+    LatencyHistogram.Snapshot getTokenFetchLatency();
+
+    /**
+     * @return number of statements executed
+     */
+    long getStatements();
+
+    /**
+     * @return number of times the token property was set
+     */
+    long getTokenSets();
+
+    /**
+     * @return number of times setting the token property was skipped because the session already carried the token
+     */
+    long getTokenSetsElided();
+
+    /**
+     * @return number of times the token provider failed to provide a token
+     */
+    long getTokenProviderFailures();
+
+    /**
+     * @return number of tokens caching token providers answered from their caches
+     */
+    long getTokenCacheHits();
+
+    /**
+     * @return number of tokens caching token providers had to fetch, or wait for another thread to fetch
+     */
+    long getTokenCacheMisses();
+
+    /**
+     * Forget all metrics recorded so far.
+     */
+    void reset();
+}
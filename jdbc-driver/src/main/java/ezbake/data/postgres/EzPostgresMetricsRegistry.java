@@ -0,0 +1,32 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+/**
+ * Service provider interface for publishing the driver's metrics to a metrics library. Implementations are found with
+ * {@link java.util.ServiceLoader}, by listing them in
+ * <code>META-INF/services/ezbake.data.postgres.EzPostgresMetricsRegistry</code>, and are each given the metrics once
+ * when the driver first records any. They would typically register gauges that read the metrics' counters and
+ * histogram snapshots when the library polls them.
+ */
+public interface EzPostgresMetricsRegistry {
+
+    /**
+     * Publish the driver's metrics.
+     *
+     * @param metrics the driver's metrics
+     */
+    void register(EzPostgresMetrics metrics);
+}
@@ -0,0 +1,257 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.thrift.ThriftUtils;
+import org.apache.thrift.TException;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * Writes rows into a table through <code>COPY ... FROM STDIN</code>, started with
+ * {@link EzPostgresCopyManager#copyInRows(String, String...)}. Each row is formatted in PostgreSQL's text
+ * <code>COPY</code> format with its visibility serialized into the {@value #VISIBILITY_COLUMN} column, and buffered
+ * until the buffer is full. Rows become visible in the table once the copy is ended with {@link #endCopy()}; closing
+ * the writer before then cancels the copy.
+ * <p />
+ * Values are written as their <code>toString()</code>, except that null is written as NULL and byte arrays as
+ * <code>bytea</code>. Consecutive rows with equal visibilities only serialize the visibility once.
+ * <p />
+ * A writer isn't thread safe.
+ */
+public class EzPostgresRowWriter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EzPostgresRowWriter.class);
+
+    /** Column that holds each row's visibility */
+    public static final String VISIBILITY_COLUMN = "visibility";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final EzPostgresCopyManager copyManager;
+    private final String sql;
+    private final int columns;
+    private final long tokenNanos;
+    private final EzPostgresTracer.Span span;
+    private final long startNanos;
+    private final CopyIn copyIn;
+
+    private final byte[] buffer;
+    private int position;
+    private final StringBuilder row = new StringBuilder();
+    private long rows;
+    private boolean ended;
+
+    /** The last visibility written and its serialized form */
+    private Visibility lastVisibility;
+    private String lastSerializedVisibility;
+
+    /**
+     * Set the token and start a copy.
+     *
+     * @param copyManager copy API of the connection to copy through
+     * @param sql <code>COPY ... FROM STDIN</code> statement in text format
+     * @param columns number of values in each row, not including the visibility
+     * @param bufferSize number of bytes of rows to buffer before sending them
+     * @throws SQLException if the token could not be set or the copy could not be started
+     */
+    EzPostgresRowWriter(EzPostgresCopyManager copyManager, String sql, int columns, int bufferSize)
+            throws SQLException {
+        this.copyManager = copyManager;
+        this.sql = sql;
+        this.columns = columns;
+        this.buffer = new byte[bufferSize];
+
+        this.tokenNanos = copyManager.applySecurityToken();
+        this.span = copyManager.startSpan();
+        this.startNanos = System.nanoTime();
+        try {
+            this.copyIn = copyManager.getCopyManager().copyIn(sql);
+        } catch (SQLException | RuntimeException e) {
+            copyManager.record(sql, startNanos, tokenNanos, -1, span);
+            throw e;
+        }
+    }
+
+    /**
+     * Write a row.
+     *
+     * @param visibility the row's visibility
+     * @param values the row's values, in the order of the columns the copy was started with
+     * @throws SQLException if the copy has ended, the number of values is wrong, or rows could not be sent
+     */
+    public void writeRow(Visibility visibility, Object... values) throws SQLException {
+        if (ended) {
+            throw new SQLException("Copy has ended");
+        }
+        if (values.length != columns) {
+            throw new SQLException(String.format("Expected %d values but got %d", columns, values.length));
+        }
+
+        row.setLength(0);
+        for (Object value : values) {
+            appendValue(value);
+            row.append('\t');
+        }
+        if (visibility != null) {
+            row.append(serialize(visibility));
+        } else {
+            row.append("\\N");
+        }
+        row.append('\n');
+
+        write(row.toString().getBytes(StandardCharsets.UTF_8));
+        rows++;
+    }
+
+    /**
+     * @return number of rows written so far
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Send any buffered rows and end the copy.
+     *
+     * @return number of rows copied
+     * @throws SQLException if the copy has ended or failed
+     */
+    public long endCopy() throws SQLException {
+        if (ended) {
+            throw new SQLException("Copy has ended");
+        }
+
+        long copied = -1;
+        try {
+            flush();
+            copied = copyIn.endCopy();
+            return copied;
+        } finally {
+            if (copied < 0 && copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                } catch (SQLException e) {
+                    logger.warn("Could not cancel failed copy", e);
+                }
+            }
+            end(copied);
+        }
+    }
+
+    /**
+     * Cancel the copy, discarding the rows written, unless it has already ended.
+     *
+     * @throws SQLException if the copy could not be cancelled
+     */
+    public void cancelCopy() throws SQLException {
+        if (ended) {
+            return;
+        }
+
+        try {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        } finally {
+            end(-1);
+        }
+    }
+
+    /**
+     * Cancel the copy unless it has been ended.
+     *
+     * @throws SQLException if the copy could not be cancelled
+     */
+    @Override
+    public void close() throws SQLException {
+        cancelCopy();
+    }
+
+    private void end(long copied) {
+        ended = true;
+        copyManager.record(sql, startNanos, tokenNanos, copied, span);
+    }
+
+    private void appendValue(Object value) {
+        if (value == null) {
+            row.append("\\N");
+        } else if (value instanceof byte[]) {
+            row.append("\\\\x");
+            for (byte b : (byte[]) value) {
+                row.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+            }
+        } else {
+            String text = value.toString();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '\\':
+                        row.append("\\\\");
+                        break;
+                    case '\t':
+                        row.append("\\t");
+                        break;
+                    case '\n':
+                        row.append("\\n");
+                        break;
+                    case '\r':
+                        row.append("\\r");
+                        break;
+                    default:
+                        row.append(c);
+                }
+            }
+        }
+    }
+
+    private String serialize(Visibility visibility) throws SQLException {
+        if (!visibility.equals(lastVisibility)) {
+            try {
+                lastSerializedVisibility = ThriftUtils.serializeToBase64(visibility);
+            } catch (TException e) {
+                throw new SQLException("Could not serialize visibility", e);
+            }
+            // Copied so that a caller reusing its visibility object is still detected as having changed it
+            lastVisibility = visibility.deepCopy();
+        }
+
+        return lastSerializedVisibility;
+    }
+
+    private void write(byte[] bytes) throws SQLException {
+        if (bytes.length > buffer.length - position) {
+            flush();
+            if (bytes.length > buffer.length) {
+                copyIn.writeToCopy(bytes, 0, bytes.length);
+                return;
+            }
+        }
+
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void flush() throws SQLException {
+        if (position > 0) {
+            copyIn.writeToCopy(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+
+import java.sql.Statement;
+
+/**
+ * Extension of the statements created by EzBake connections, reached through
+ * <code>statement.unwrap(EzPostgresStatement.class)</code>. It lets a statement run with its own token regardless of
+ * the token its connection would set.
+ */
+public interface EzPostgresStatement extends Statement {
+
+    /**
+     * Set the token for this statement's executions, instead of the connection's token. As with
+     * {@link EzPostgresConnection#setSecurityToken(EzSecurityToken)}, the token is not validated, so it must be one the
+     * caller has already validated.
+     *
+     * @param token token to set, or null to use the connection's token
+     */
+    void setSecurityToken(EzSecurityToken token);
+
+    /**
+     * @return the token set with {@link #setSecurityToken(EzSecurityToken)}, or null if the connection's token is used
+     */
+    EzSecurityToken getSecurityToken();
+}
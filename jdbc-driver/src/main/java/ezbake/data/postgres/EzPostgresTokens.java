@@ -0,0 +1,133 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Binds security tokens to the current thread for {@link ScopedTokenProvider}. A request thread binds its user's token
+ * once, and every statement executed within the scope sets that token without a call to the security service:
+ * <pre>
+ * try (TokenScope scope = EzPostgresTokens.bind(token)) {
+ *     ...
+ * }
+ * </pre>
+ * Bindings are per thread. Work handed to other threads can carry the binding along by being wrapped with one of the
+ * <code>wrap</code> methods, which capture the binding when they are called and bind it around the work.
+ */
+public final class EzPostgresTokens {
+
+    private static final ThreadLocal<EzSecurityToken> boundToken = new ThreadLocal<EzSecurityToken>();
+
+    private EzPostgresTokens() {
+    }
+
+    /**
+     * Bind a token to the current thread until the returned scope is closed. Scopes may be nested; closing one
+     * restores the binding it replaced.
+     *
+     * @param token token to bind, or null to leave the thread unbound within the scope
+     * @return scope to close when done
+     */
+    public static TokenScope bind(EzSecurityToken token) {
+        EzSecurityToken previous = boundToken.get();
+        set(token);
+
+        return new TokenScope(token, previous);
+    }
+
+    /**
+     * @return the token bound to the current thread, or null if there is none
+     */
+    public static EzSecurityToken current() {
+        return boundToken.get();
+    }
+
+    /**
+     * Wrap a task so that it runs with the current thread's binding.
+     *
+     * @param task task to wrap
+     * @return wrapped task
+     */
+    public static Runnable wrap(final Runnable task) {
+        final EzSecurityToken token = current();
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                TokenScope scope = bind(token);
+                try {
+                    task.run();
+                } finally {
+                    scope.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap a task so that it runs with the current thread's binding.
+     *
+     * @param task task to wrap
+     * @param <T> task result type
+     * @return wrapped task
+     */
+    public static <T> Callable<T> wrap(final Callable<T> task) {
+        final EzSecurityToken token = current();
+
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                TokenScope scope = bind(token);
+                try {
+                    return task.call();
+                } finally {
+                    scope.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap an executor so that every task it is given runs with the binding of the thread that submitted it.
+     *
+     * @param executor executor to wrap
+     * @return wrapped executor
+     */
+    public static Executor wrap(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executor.execute(wrap(command));
+            }
+        };
+    }
+
+    /**
+     * Replace the current thread's binding.
+     *
+     * @param token token to bind, or null to unbind
+     */
+    static void set(EzSecurityToken token) {
+        if (token == null) {
+            boundToken.remove();
+        } else {
+            boundToken.set(token);
+        }
+    }
+}
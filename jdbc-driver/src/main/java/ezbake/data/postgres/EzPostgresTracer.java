@@ -0,0 +1,240 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Service provider interface for tracing the driver's work as spans of a distributed trace or as profiling events:
+ * connecting, fetching the token from the token provider, setting it, and executing each statement. This base class
+ * traces nothing; tracers extend it and override what they need.
+ * <p />
+ * The driver uses the first tracer found with {@link ServiceLoader}, by listing it in
+ * <code>META-INF/services/ezbake.data.postgres.EzPostgresTracer</code>, unless one is installed with
+ * {@link #setInstance(EzPostgresTracer)}.
+ * <p />
+ * The driver always asks {@link #isSampled(Operation)} before starting a span, and only builds attribute values (such
+ * as SQL fingerprints) for spans that are started, so that untraced statements allocate nothing for tracing.
+ */
+public abstract class EzPostgresTracer {
+    private static final Logger logger = LoggerFactory.getLogger(EzPostgresTracer.class);
+
+    /** Attribute for the fingerprint of the statement's SQL */
+    public static final String FINGERPRINT_ATTRIBUTE = "db.statement.fingerprint";
+
+    /** Attribute for the number of rows the statement updated */
+    public static final String ROWS_ATTRIBUTE = "db.rows_affected";
+
+    /** Attribute for the security ID of the application the token was issued to */
+    public static final String SECURITY_ID_ATTRIBUTE = "ezbake.security_id";
+
+    /** Attribute for the principal of the token */
+    public static final String PRINCIPAL_ATTRIBUTE = "ezbake.principal";
+
+    /** Attribute for the class name of the token provider a token was fetched from */
+    public static final String PROVIDER_ATTRIBUTE = "ezbake.token.provider";
+
+    /**
+     * Attribute that is true if the fetched token is the one the session already carries, so that setting it can be
+     * elided. This says nothing about whether the token provider had the token cached.
+     */
+    public static final String CARRIED_ATTRIBUTE = "ezbake.token.carried";
+
+    /** Attribute for the number of characters of token or token handle sent to set the token */
+    public static final String BYTES_ATTRIBUTE = "ezbake.token.bytes";
+
+    /** Attribute that is true if setting the token was skipped because the session already carries it */
+    public static final String ELIDED_ATTRIBUTE = "ezbake.token.elided";
+
+    /** Attribute for the nanoseconds a connect spent parsing the connection URL */
+    public static final String PARSE_URL_NANOS_ATTRIBUTE = "ezpostgres.connect.parse_url_nanos";
+
+    /** Attribute for the nanoseconds a connect spent creating the token provider */
+    public static final String TOKEN_PROVIDER_NANOS_ATTRIBUTE = "ezpostgres.connect.token_provider_nanos";
+
+    /** Attribute for the nanoseconds a connect spent opening the real connection */
+    public static final String REAL_CONNECT_NANOS_ATTRIBUTE = "ezpostgres.connect.real_connect_nanos";
+
+    /** Attribute for the nanoseconds a connect spent decorating the real connection */
+    public static final String DECORATE_NANOS_ATTRIBUTE = "ezpostgres.connect.decorate_nanos";
+
+    /** Operations of the driver that are traced */
+    public enum Operation {
+        /** Opening a connection through the driver */
+        CONNECT("ezpostgres.connect"),
+
+        /** Asking the token provider for a token */
+        TOKEN_FETCH("ezpostgres.token.fetch"),
+
+        /** Setting the token property */
+        TOKEN_SET("ezpostgres.token.set"),
+
+        /** Executing a statement */
+        EXECUTE("ezpostgres.execute");
+
+        private final String spanName;
+
+        private Operation(String spanName) {
+            this.spanName = spanName;
+        }
+
+        /**
+         * @return name of spans of this operation
+         */
+        public String getSpanName() {
+            return spanName;
+        }
+    }
+
+    private static final EzPostgresTracer NOOP = new EzPostgresTracer() {
+    };
+
+    private static volatile EzPostgresTracer instance;
+
+    /**
+     * @return the tracer the driver uses, found on first use
+     */
+    public static EzPostgresTracer getInstance() {
+        EzPostgresTracer tracer = instance;
+        if (tracer == null) {
+            synchronized (EzPostgresTracer.class) {
+                tracer = instance;
+                if (tracer == null) {
+                    tracer = load();
+                    instance = tracer;
+                }
+            }
+        }
+
+        return tracer;
+    }
+
+    /**
+     * Install the tracer the driver uses.
+     *
+     * @param tracer tracer to use, or null to trace nothing
+     */
+    public static void setInstance(EzPostgresTracer tracer) {
+        instance = tracer != null ? tracer : NOOP;
+    }
+
+    /**
+     * Returns true if an operation about to start should be traced, typically because it is part of a sampled trace.
+     * Nothing about the operation has been computed yet.
+     *
+     * @param operation the operation
+     * @return true to start a span for the operation; by default, false
+     */
+    public boolean isSampled(Operation operation) {
+        return false;
+    }
+
+    /**
+     * Start a span for an operation that {@link #isSampled(Operation)} said to trace. The span is ended by the
+     * driver once the operation completes, even if it fails.
+     *
+     * @param operation the operation
+     * @return a started span; by default, one that records nothing
+     */
+    public Span startSpan(Operation operation) {
+        return Span.NOOP;
+    }
+
+    /**
+     * Set the attributes describing a token on a span.
+     *
+     * @param span a started span
+     * @param token the token the operation used, or null if unknown
+     */
+    static void setTokenAttributes(Span span, EzSecurityToken token) {
+        if (token == null) {
+            return;
+        }
+
+        String securityId = SecurityTokens.getSecurityId(token);
+        if (securityId != null) {
+            span.setAttribute(SECURITY_ID_ATTRIBUTE, securityId);
+        }
+
+        String principal = SecurityTokens.getPrincipal(token);
+        if (principal != null) {
+            span.setAttribute(PRINCIPAL_ATTRIBUTE, principal);
+        }
+    }
+
+    private static EzPostgresTracer load() {
+        try {
+            Iterator<EzPostgresTracer> tracers = ServiceLoader.load(EzPostgresTracer.class).iterator();
+            if (tracers.hasNext()) {
+                return tracers.next();
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.warn("Could not load tracer", e);
+        }
+
+        return NOOP;
+    }
+
+    /**
+     * A span of a traced operation. This base class records nothing.
+     */
+    public abstract static class Span {
+
+        /** A span that records nothing */
+        public static final Span NOOP = new Span() {
+        };
+
+        /**
+         * @param name attribute name
+         * @param value attribute value
+         */
+        public void setAttribute(String name, String value) {
+        }
+
+        /**
+         * @param name attribute name
+         * @param value attribute value
+         */
+        public void setAttribute(String name, long value) {
+        }
+
+        /**
+         * @param name attribute name
+         * @param value attribute value
+         */
+        public void setAttribute(String name, boolean value) {
+        }
+
+        /**
+         * Mark the span as failed.
+         *
+         * @param error what the operation failed with
+         */
+        public void recordError(Throwable error) {
+        }
+
+        /**
+         * End the span.
+         */
+        public void end() {
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The batch of a prepared <code>INSERT ... VALUES (?, ...)</code> statement, executed as multi-row
+ * <code>INSERT ... VALUES (?, ...), (?, ...), ...</code> statements instead of one statement per row. Enabled with the
+ * connection property <code>ezbakeBatchRewriteRows</code>, the number of rows to insert with each statement.
+ * <p />
+ * The decorated statement reports each parameter it sets, so that each added row can be kept here rather than in the
+ * real statement's batch. The full-width statement is prepared once and reused; rows left over are inserted with one
+ * more statement. Each row's update count is 1 if its statement inserted all of its rows, or
+ * {@link Statement#SUCCESS_NO_INFO} otherwise.
+ * <p />
+ * A parameter set in a way that can't be replayed (a stream, or a calendar, for instance) hands the rows kept so far
+ * to the real statement's batch, which then executes as usual.
+ */
+class InsertBatch {
+
+    /** Most parameters a PostgreSQL statement can have */
+    static final int MAX_PARAMETERS = 32767;
+
+    /** Identifier, optionally quoted */
+    private static final String IDENTIFIER = "(?:\"(?:[^\"]|\"\")*\"|[^\\s(\".]+)";
+
+    /** INSERT with nothing but parameters in a single VALUES list, with the statement up to VALUES in group 1 */
+    private static final Pattern SIMPLE_INSERT = Pattern.compile(
+            "^\\s*(insert\\s+into\\s+" + IDENTIFIER + "(?:\\s*\\.\\s*" + IDENTIFIER + ")?"
+                    + "(?:\\s*\\([^)]*\\))?\\s*values)"
+                    + "\\s*\\(\\s*\\?((?:\\s*,\\s*\\?)*)\\s*\\)\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** Stands for a parameter set in a way that can't be replayed */
+    private static final Parameter UNCAPTURED = new Parameter(null, 0, false);
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final String prefix;
+    private final int parameters;
+    private final int rowsPerStatement;
+
+    /** Parameters of the row being built */
+    private final Parameter[] current;
+
+    /** Rows added to the batch */
+    private final List<Parameter[]> rows = new ArrayList<Parameter[]>();
+
+    /** Whether the batch has been handed to the real statement */
+    private boolean fallenBack;
+
+    /** Prepared full-width statement, or null if not prepared yet */
+    private PreparedStatement multiRowStatement;
+
+    private InsertBatch(Connection connection, PreparedStatement statement, String prefix, int parameters,
+            int rowsPerStatement) {
+        this.connection = connection;
+        this.statement = statement;
+        this.prefix = prefix;
+        this.parameters = parameters;
+        this.rowsPerStatement = rowsPerStatement;
+        this.current = new Parameter[parameters];
+    }
+
+    /**
+     * Create the batch for a prepared statement, if its batches can be rewritten.
+     *
+     * @param connection the real connection to prepare multi-row statements on
+     * @param statement the real statement
+     * @param sql SQL the statement was prepared with
+     * @param rowsPerStatement rows to insert with each statement
+     * @return the statement's batch, or null if the SQL isn't a simple INSERT or rows wouldn't be combined
+     */
+    static InsertBatch create(Connection connection, PreparedStatement statement, String sql, int rowsPerStatement) {
+        if (rowsPerStatement < 2) {
+            return null;
+        }
+
+        Matcher matcher = SIMPLE_INSERT.matcher(sql);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        int parameters = 1;
+        String moreParameters = matcher.group(2);
+        for (int i = 0; i < moreParameters.length(); i++) {
+            if (moreParameters.charAt(i) == '?') {
+                parameters++;
+            }
+        }
+
+        int rows = Math.min(rowsPerStatement, MAX_PARAMETERS / parameters);
+        if (rows < 2) {
+            return null;
+        }
+
+        return new InsertBatch(connection, statement, matcher.group(1), parameters, rows);
+    }
+
+    /**
+     * Note a parameter set to a value that {@link PreparedStatement#setObject(int, Object)} sets the same way.
+     *
+     * @param index parameter index
+     * @param value parameter value
+     */
+    void set(int index, Object value) {
+        set(index, new Parameter(snapshot(value), 0, false));
+    }
+
+    /**
+     * Note a parameter set with {@link PreparedStatement#setObject(int, Object, int)}.
+     *
+     * @param index parameter index
+     * @param value parameter value
+     * @param sqlType SQL type of the parameter
+     */
+    void setTyped(int index, Object value, int sqlType) {
+        set(index, new Parameter(snapshot(value), sqlType, true));
+    }
+
+    /**
+     * Note a parameter set to null with {@link PreparedStatement#setNull(int, int)}.
+     *
+     * @param index parameter index
+     * @param sqlType SQL type of the parameter
+     */
+    void setNull(int index, int sqlType) {
+        set(index, new Parameter(null, sqlType, true));
+    }
+
+    /**
+     * Note a parameter about to be set in a way that can't be replayed, handing the batch to the real statement.
+     *
+     * @param index parameter index
+     * @throws SQLException if the batch could not be handed over
+     */
+    void setUncaptured(int index) throws SQLException {
+        fallBack();
+        set(index, UNCAPTURED);
+    }
+
+    /**
+     * Forget the parameters of the row being built.
+     */
+    void clearParameters() {
+        Arrays.fill(current, null);
+    }
+
+    /**
+     * Add the row being built to the batch.
+     *
+     * @throws SQLException if the row could not be added
+     */
+    void addBatch() throws SQLException {
+        if (!fallenBack) {
+            boolean complete = true;
+            for (Parameter parameter : current) {
+                if (parameter == null || parameter == UNCAPTURED) {
+                    complete = false;
+                    break;
+                }
+            }
+
+            if (complete) {
+                rows.add(current.clone());
+                return;
+            }
+
+            // Let the real statement report the missing parameter as it would have
+            fallBack();
+        }
+
+        statement.addBatch();
+    }
+
+    /**
+     * Forget the rows added to the batch.
+     */
+    void clearBatch() {
+        rows.clear();
+        fallenBack = false;
+    }
+
+    /**
+     * Execute the batch.
+     *
+     * @return the update count of each row
+     * @throws SQLException if a statement failed
+     */
+    int[] executeBatch() throws SQLException {
+        try {
+            if (!fallenBack && rows.size() == 1) {
+                fallBack();
+            }
+            if (fallenBack) {
+                return statement.executeBatch();
+            }
+
+            return executeRewritten();
+        } finally {
+            clearBatch();
+        }
+    }
+
+    /**
+     * Close the statements prepared for the batch.
+     *
+     * @throws SQLException if a statement could not be closed
+     */
+    void close() throws SQLException {
+        if (multiRowStatement != null) {
+            multiRowStatement.close();
+            multiRowStatement = null;
+        }
+    }
+
+    private int[] executeRewritten() throws SQLException {
+        int[] counts = new int[rows.size()];
+        int fullStatements = rows.size() / rowsPerStatement;
+        int remainder = rows.size() % rowsPerStatement;
+        int done = 0;
+
+        try {
+            if (fullStatements > 0) {
+                if (multiRowStatement == null) {
+                    multiRowStatement = connection.prepareStatement(getSql(rowsPerStatement));
+                }
+                multiRowStatement.setQueryTimeout(statement.getQueryTimeout());
+
+                for (int i = 0; i < fullStatements; i++) {
+                    bind(multiRowStatement, i * rowsPerStatement, rowsPerStatement);
+                    multiRowStatement.addBatch();
+                }
+
+                int[] statementCounts;
+                try {
+                    statementCounts = multiRowStatement.executeBatch();
+                } catch (BatchUpdateException e) {
+                    multiRowStatement.clearBatch();
+                    statementCounts = e.getUpdateCounts() != null ? e.getUpdateCounts() : new int[0];
+                    done = setRowCounts(counts, statementCounts, rowsPerStatement);
+                    throw e;
+                }
+                done = setRowCounts(counts, statementCounts, rowsPerStatement);
+            }
+
+            if (remainder > 0) {
+                PreparedStatement remainderStatement = connection.prepareStatement(getSql(remainder));
+                try {
+                    remainderStatement.setQueryTimeout(statement.getQueryTimeout());
+                    bind(remainderStatement, done, remainder);
+                    int count = remainderStatement.executeUpdate();
+                    Arrays.fill(counts, done, done + remainder, count == remainder ? 1 : Statement.SUCCESS_NO_INFO);
+                } finally {
+                    remainderStatement.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(),
+                    Arrays.copyOf(counts, done), e);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Set the update counts of the rows of executed full-width statements.
+     *
+     * @return number of rows the counts were set for
+     */
+    private static int setRowCounts(int[] counts, int[] statementCounts, int rowsPerStatement) {
+        for (int i = 0; i < statementCounts.length; i++) {
+            int count = statementCounts[i] == rowsPerStatement ? 1 : Statement.SUCCESS_NO_INFO;
+            Arrays.fill(counts, i * rowsPerStatement, (i + 1) * rowsPerStatement, count);
+        }
+
+        return statementCounts.length * rowsPerStatement;
+    }
+
+    private String getSql(int rowCount) {
+        StringBuilder values = new StringBuilder("(?");
+        for (int i = 1; i < parameters; i++) {
+            values.append(", ?");
+        }
+        values.append(')');
+
+        StringBuilder sql = new StringBuilder(prefix).append(' ').append(values);
+        for (int i = 1; i < rowCount; i++) {
+            sql.append(", ").append(values);
+        }
+
+        return sql.toString();
+    }
+
+    private void bind(PreparedStatement multiRow, int firstRow, int rowCount) throws SQLException {
+        int index = 1;
+        for (int row = firstRow; row < firstRow + rowCount; row++) {
+            for (Parameter parameter : rows.get(row)) {
+                parameter.apply(multiRow, index++);
+            }
+        }
+    }
+
+    /**
+     * Copy a mutable value, since the real statement has already converted it and the caller may reuse it.
+     */
+    private static Object snapshot(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        } else if (value instanceof java.util.Date) {
+            return ((java.util.Date) value).clone();
+        }
+
+        return value;
+    }
+
+    private void set(int index, Parameter parameter) {
+        // Out of range indexes have already been rejected by the real statement
+        if (index >= 1 && index <= parameters) {
+            current[index - 1] = parameter;
+        }
+    }
+
+    /**
+     * Hand the rows added so far to the real statement's batch, then set the real statement's parameters back to
+     * those of the row being built.
+     */
+    private void fallBack() throws SQLException {
+        if (fallenBack) {
+            return;
+        }
+        fallenBack = true;
+
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        for (Parameter[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                row[i].apply(statement, i + 1);
+            }
+            statement.addBatch();
+        }
+        rows.clear();
+
+        // Rows are only kept while every parameter of the row being built can be replayed
+        statement.clearParameters();
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != null) {
+                current[i].apply(statement, i + 1);
+            }
+        }
+    }
+
+    /**
+     * A parameter value that can be set again on another statement.
+     */
+    private static class Parameter {
+        final Object value;
+        final int sqlType;
+        final boolean typed;
+
+        Parameter(Object value, int sqlType, boolean typed) {
+            this.value = value;
+            this.sqlType = sqlType;
+            this.typed = typed;
+        }
+
+        void apply(PreparedStatement statement, int index) throws SQLException {
+            if (!typed) {
+                statement.setObject(index, value);
+            } else if (value == null) {
+                statement.setNull(index, sqlType);
+            } else {
+                statement.setObject(index, value, sqlType);
+            }
+        }
+    }
+}
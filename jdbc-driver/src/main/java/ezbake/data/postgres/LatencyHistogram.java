@@ -0,0 +1,267 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets: each power of two is split into equal buckets, by
+ * default 16 of them, so any recorded value is reported to within about 6%. Recording is lock-free and allocates
+ * nothing, so it can be done on every statement. Reading takes a snapshot that may be slightly inconsistent with
+ * concurrent recording.
+ */
+public final class LatencyHistogram {
+
+    /** Default bits of precision below each power of two */
+    public static final int DEFAULT_SUB_BUCKET_BITS = 4;
+
+    private final int subBucketBits;
+    private final int subBuckets;
+
+    /** Enough buckets for any non-negative long */
+    private final int buckets;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Create a histogram with the default precision.
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Create a histogram that splits each power of two into <code>2^subBucketBits</code> buckets. Fewer bits make a
+     * smaller histogram: 2 bits report values to within 25% in about 2KB, 4 bits to within 6% in about 8KB.
+     *
+     * @param subBucketBits bits of precision below each power of two, from 1 to 8
+     */
+    public LatencyHistogram(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 8) {
+            throw new IllegalArgumentException("Sub-bucket bits must be between 1 and 8");
+        }
+
+        this.subBucketBits = subBucketBits;
+        this.subBuckets = 1 << subBucketBits;
+        this.buckets = bucket(Long.MAX_VALUE) + 1;
+        this.counts = new AtomicLongArray(buckets);
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos latency in nanoseconds; negative values are recorded as zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time.
+     *
+     * @param startNanos start time from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of all latencies recorded, in nanoseconds
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Returns the latency that the given fraction of recorded latencies are at or below, rounded up to the top of its
+     * bucket.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] bucketCounts = copyCounts();
+
+        return valueAtPercentile(bucketCounts, sum(bucketCounts), percentile);
+    }
+
+    /**
+     * @return the current count, mean and common percentiles
+     */
+    public Snapshot getSnapshot() {
+        long[] bucketCounts = copyCounts();
+        long recorded = sum(bucketCounts);
+
+        return new Snapshot(
+                recorded,
+                recorded == 0 ? 0 : total.get() / recorded,
+                valueAtPercentile(bucketCounts, recorded, 50),
+                valueAtPercentile(bucketCounts, recorded, 90),
+                valueAtPercentile(bucketCounts, recorded, 99),
+                valueAtPercentile(bucketCounts, recorded, 99.9),
+                max.get());
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    private long[] copyCounts() {
+        long[] bucketCounts = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            bucketCounts[i] = counts.get(i);
+        }
+
+        return bucketCounts;
+    }
+
+    private static long sum(long[] bucketCounts) {
+        long sum = 0;
+        for (long bucketCount : bucketCounts) {
+            sum += bucketCount;
+        }
+
+        return sum;
+    }
+
+    private long valueAtPercentile(long[] bucketCounts, long recorded, double percentile) {
+        if (recorded == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < buckets; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Values below twice the sub-bucket count get a bucket each. Above that, a value's bucket is its power of two and
+     * its next {@link #subBucketBits} bits.
+     */
+    private int bucket(long value) {
+        if (value < 2 * subBuckets) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return (shift << subBucketBits) + (int) (value >>> shift);
+    }
+
+    private long highestValue(int bucket) {
+        if (bucket < 2 * subBuckets) {
+            return bucket;
+        }
+
+        int shift = (bucket >>> subBucketBits) - 1;
+        long subBucket = bucket - (shift << subBucketBits);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Summary of a histogram at one point in time. All latencies are in nanoseconds.
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+        public Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%d p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                    count, mean, p50, p90, p99, p999, max);
+        }
+    }
+}
@@ -14,9 +14,6 @@
 
 package ezbake.data.postgres;
 
-import ezbake.base.thrift.EzSecurityToken;
-
-import javax.inject.Provider;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
@@ -38,170 +35,333 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.Calendar;
 
-/** Wrapper for prepared statement that sets a security token as a database property before statement execution. */
+/**
+ * Wrapper for prepared statement that sets a security token as a database property before statement execution.
+ * <p />
+ * Batches of simple <code>INSERT ... VALUES (?, ...)</code> statements can be executed as multi-row INSERTs instead
+ * of one statement per row; see {@link InsertBatch}.
+ */
 class PreparedStatementDecorator extends StatementDecorator implements PreparedStatement {
     private PreparedStatement preparedStatement;
+    private String sql;
+
+    /** Batch of multi-row INSERTs, or null if batches are executed by the real statement */
+    private InsertBatch insertBatch;
 
     /**
      * Wrap an existing prepared statement.
      *
      * @param preparedStatement statement to wrap
-     * @param provider token provider
+     * @param connectionDecorator decorated connection that created the statement
+     * @param sql SQL the statement was prepared with
      */
-    public PreparedStatementDecorator(PreparedStatement preparedStatement, Provider<EzSecurityToken> provider) {
-        super(preparedStatement, provider);
+    public PreparedStatementDecorator(PreparedStatement preparedStatement, ConnectionDecorator connectionDecorator,
+            String sql) {
+        super(preparedStatement, connectionDecorator);
 
         this.preparedStatement = preparedStatement;
+        this.sql = sql;
+    }
+
+    /**
+     * Wrap an existing prepared statement, executing its batches as multi-row INSERTs if it is a simple INSERT.
+     *
+     * @param preparedStatement statement to wrap
+     * @param connectionDecorator decorated connection that created the statement
+     * @param sql SQL the statement was prepared with
+     * @param batchRewriteRows rows to insert with each statement, or 0 to execute batches one row at a time
+     */
+    PreparedStatementDecorator(PreparedStatement preparedStatement, ConnectionDecorator connectionDecorator,
+            String sql, int batchRewriteRows) {
+        this(preparedStatement, connectionDecorator, sql);
+
+        this.insertBatch = InsertBatch.create(
+                connectionDecorator.getWrappedConnection(), preparedStatement, sql, batchRewriteRows);
+    }
+
+    /**
+     * Note that a parameter is about to be set in a way that can't be replayed into a multi-row INSERT.
+     *
+     * @param i parameter index
+     * @throws SQLException if the batch could not be handed to the real statement
+     */
+    private void uncaptured(int i) throws SQLException {
+        if (insertBatch != null) {
+            insertBatch.setUncaptured(i);
+        }
+    }
+
+    @Override
+    protected String getSql() {
+        return sql;
     }
 
     @Override
     public ResultSet executeQuery() throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(sql);
 
-        return preparedStatement.executeQuery();
+        long start = beginExecution();
+        try {
+            return preparedStatement.executeQuery();
+        } finally {
+            recordExecution(sql, start, -1);
+        }
     }
 
     @Override
     public int executeUpdate() throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(sql);
 
-        return preparedStatement.executeUpdate();
+        long start = beginExecution();
+        int rows = -1;
+        try {
+            rows = preparedStatement.executeUpdate();
+            return rows;
+        } finally {
+            recordExecution(sql, start, rows);
+        }
     }
 
     @Override
     public void setNull(int i, int i2) throws SQLException {
         preparedStatement.setNull(i, i2);
+        if (insertBatch != null) {
+            insertBatch.setNull(i, i2);
+        }
     }
 
     @Override
     public void setBoolean(int i, boolean b) throws SQLException {
         preparedStatement.setBoolean(i, b);
+        if (insertBatch != null) {
+            insertBatch.set(i, b);
+        }
     }
 
     @Override
     public void setByte(int i, byte b) throws SQLException {
         preparedStatement.setByte(i, b);
+        if (insertBatch != null) {
+            insertBatch.set(i, b);
+        }
     }
 
     @Override
     public void setShort(int i, short i2) throws SQLException {
         preparedStatement.setShort(i, i2);
+        if (insertBatch != null) {
+            insertBatch.set(i, i2);
+        }
     }
 
     @Override
     public void setInt(int i, int i2) throws SQLException {
         preparedStatement.setInt(i, i2);
+        if (insertBatch != null) {
+            insertBatch.set(i, i2);
+        }
     }
 
     @Override
     public void setLong(int i, long l) throws SQLException {
         preparedStatement.setLong(i, l);
+        if (insertBatch != null) {
+            insertBatch.set(i, l);
+        }
     }
 
     @Override
     public void setFloat(int i, float v) throws SQLException {
         preparedStatement.setFloat(i, v);
+        if (insertBatch != null) {
+            insertBatch.set(i, v);
+        }
     }
 
     @Override
     public void setDouble(int i, double v) throws SQLException {
         preparedStatement.setDouble(i, v);
+        if (insertBatch != null) {
+            insertBatch.set(i, v);
+        }
     }
 
     @Override
     public void setBigDecimal(int i, BigDecimal bigDecimal) throws SQLException {
         preparedStatement.setBigDecimal(i, bigDecimal);
+        if (insertBatch != null) {
+            insertBatch.set(i, bigDecimal);
+        }
     }
 
     @Override
     public void setString(int i, String s) throws SQLException {
         preparedStatement.setString(i, s);
+        if (insertBatch != null) {
+            insertBatch.set(i, s);
+        }
     }
 
     @Override
     public void setBytes(int i, byte[] bytes) throws SQLException {
         preparedStatement.setBytes(i, bytes);
+        if (insertBatch != null) {
+            insertBatch.set(i, bytes);
+        }
     }
 
     @Override
     public void setDate(int i, Date date) throws SQLException {
         preparedStatement.setDate(i, date);
+        if (insertBatch != null) {
+            insertBatch.set(i, date);
+        }
     }
 
     @Override
     public void setTime(int i, Time time) throws SQLException {
         preparedStatement.setTime(i, time);
+        if (insertBatch != null) {
+            insertBatch.set(i, time);
+        }
     }
 
     @Override
     public void setTimestamp(int i, Timestamp timestamp) throws SQLException {
         preparedStatement.setTimestamp(i, timestamp);
+        if (insertBatch != null) {
+            insertBatch.set(i, timestamp);
+        }
     }
 
     @Override
     public void setAsciiStream(int i, InputStream inputStream, int i2) throws SQLException {
+        uncaptured(i);
         preparedStatement.setAsciiStream(i, inputStream, i2);
     }
 
     @Override @SuppressWarnings("deprecation")
     public void setUnicodeStream(int i, InputStream inputStream, int i2) throws SQLException {
+        uncaptured(i);
         preparedStatement.setUnicodeStream(i, inputStream, i2);
     }
 
     @Override
     public void setBinaryStream(int i, InputStream inputStream, int i2) throws SQLException {
+        uncaptured(i);
         preparedStatement.setBinaryStream(i, inputStream, i2);
     }
 
     @Override
     public void clearParameters() throws SQLException {
         preparedStatement.clearParameters();
+        if (insertBatch != null) {
+            insertBatch.clearParameters();
+        }
     }
 
     @Override
     public void setObject(int i, Object o, int i2) throws SQLException {
         preparedStatement.setObject(i, o, i2);
+        if (insertBatch != null) {
+            insertBatch.setTyped(i, o, i2);
+        }
     }
 
     @Override
     public void setObject(int i, Object o) throws SQLException {
         preparedStatement.setObject(i, o);
+        if (insertBatch != null) {
+            insertBatch.set(i, o);
+        }
     }
 
     @Override
     public boolean execute() throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(sql);
 
-        return preparedStatement.execute();
+        long start = beginExecution();
+        try {
+            return preparedStatement.execute();
+        } finally {
+            recordExecution(sql, start, -1);
+        }
     }
 
     @Override
     public void addBatch() throws SQLException {
-        preparedStatement.addBatch();
+        if (insertBatch != null) {
+            insertBatch.addBatch();
+        } else {
+            preparedStatement.addBatch();
+        }
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        super.clearBatch();
+        if (insertBatch != null) {
+            insertBatch.clearBatch();
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        if (insertBatch == null) {
+            return super.executeBatch();
+        }
+
+        // The token is set once for all of the batch's statements
+        executeSetTokenProperty(sql);
+
+        long start = beginExecution();
+        int[] counts = null;
+        try {
+            counts = insertBatch.executeBatch();
+            return counts;
+        } finally {
+            recordExecution(sql, start, sum(counts));
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            if (insertBatch != null) {
+                insertBatch.close();
+            }
+        } finally {
+            super.close();
+        }
     }
 
     @Override
     public void setCharacterStream(int i, Reader reader, int i2) throws SQLException {
+        uncaptured(i);
         preparedStatement.setCharacterStream(i, reader, i2);
     }
 
     @Override
     public void setRef(int i, Ref ref) throws SQLException {
+        uncaptured(i);
         preparedStatement.setRef(i, ref);
     }
 
     @Override
     public void setBlob(int i, Blob blob) throws SQLException {
+        uncaptured(i);
         preparedStatement.setBlob(i, blob);
     }
 
     @Override
     public void setClob(int i, Clob clob) throws SQLException {
+        uncaptured(i);
         preparedStatement.setClob(i, clob);
     }
 
     @Override
     public void setArray(int i, Array array) throws SQLException {
+        uncaptured(i);
         preparedStatement.setArray(i, array);
     }
 
@@ -212,26 +372,31 @@ class PreparedStatementDecorator extends StatementDecorator implements PreparedS
 
     @Override
     public void setDate(int i, Date date, Calendar calendar) throws SQLException {
+        uncaptured(i);
         preparedStatement.setDate(i, date, calendar);
     }
 
     @Override
     public void setTime(int i, Time time, Calendar calendar) throws SQLException {
+        uncaptured(i);
         preparedStatement.setTime(i, time, calendar);
     }
 
     @Override
     public void setTimestamp(int i, Timestamp timestamp, Calendar calendar) throws SQLException {
+        uncaptured(i);
         preparedStatement.setTimestamp(i, timestamp, calendar);
     }
 
     @Override
     public void setNull(int i, int i2, String s) throws SQLException {
+        uncaptured(i);
         preparedStatement.setNull(i, i2, s);
     }
 
     @Override
     public void setURL(int i, URL url) throws SQLException {
+        uncaptured(i);
         preparedStatement.setURL(i, url);
     }
 
@@ -242,96 +407,115 @@ class PreparedStatementDecorator extends StatementDecorator implements PreparedS
 
     @Override
     public void setRowId(int i, RowId rowId) throws SQLException {
+        uncaptured(i);
         preparedStatement.setRowId(i, rowId);
     }
 
     @Override
     public void setNString(int i, String s) throws SQLException {
+        uncaptured(i);
         preparedStatement.setNString(i, s);
     }
 
     @Override
     public void setNCharacterStream(int i, Reader reader, long l) throws SQLException {
+        uncaptured(i);
         preparedStatement.setNCharacterStream(i, reader, l);
     }
 
     @Override
     public void setNClob(int i, NClob nClob) throws SQLException {
+        uncaptured(i);
         preparedStatement.setNClob(i, nClob);
     }
 
     @Override
     public void setClob(int i, Reader reader, long l) throws SQLException {
+        uncaptured(i);
         preparedStatement.setClob(i, reader, l);
     }
 
     @Override
     public void setBlob(int i, InputStream inputStream, long l) throws SQLException {
+        uncaptured(i);
         preparedStatement.setBlob(i, inputStream, l);
     }
 
     @Override
     public void setNClob(int i, Reader reader, long l) throws SQLException {
+        uncaptured(i);
         preparedStatement.setNClob(i, reader, l);
     }
 
     @Override
     public void setSQLXML(int i, SQLXML sqlxml) throws SQLException {
+        uncaptured(i);
         preparedStatement.setSQLXML(i, sqlxml);
     }
 
     @Override
     public void setObject(int i, Object o, int i2, int i3) throws SQLException {
+        uncaptured(i);
         preparedStatement.setObject(i, o, i2, i3);
     }
 
     @Override
     public void setAsciiStream(int i, InputStream inputStream, long l) throws SQLException {
+        uncaptured(i);
         preparedStatement.setAsciiStream(i, inputStream, l);
     }
 
     @Override
     public void setBinaryStream(int i, InputStream inputStream, long l) throws SQLException {
+        uncaptured(i);
         preparedStatement.setBinaryStream(i, inputStream, l);
     }
 
     @Override
     public void setCharacterStream(int i, Reader reader, long l) throws SQLException {
+        uncaptured(i);
         preparedStatement.setCharacterStream(i, reader, l);
     }
 
     @Override
     public void setAsciiStream(int i, InputStream inputStream) throws SQLException {
+        uncaptured(i);
         preparedStatement.setAsciiStream(i, inputStream);
     }
 
     @Override
     public void setBinaryStream(int i, InputStream inputStream) throws SQLException {
+        uncaptured(i);
         preparedStatement.setBinaryStream(i, inputStream);
     }
 
     @Override
     public void setCharacterStream(int i, Reader reader) throws SQLException {
+        uncaptured(i);
         preparedStatement.setCharacterStream(i, reader);
     }
 
     @Override
     public void setNCharacterStream(int i, Reader reader) throws SQLException {
+        uncaptured(i);
         preparedStatement.setNCharacterStream(i, reader);
     }
 
     @Override
     public void setClob(int i, Reader reader) throws SQLException {
+        uncaptured(i);
         preparedStatement.setClob(i, reader);
     }
 
     @Override
     public void setBlob(int i, InputStream inputStream) throws SQLException {
+        uncaptured(i);
         preparedStatement.setBlob(i, inputStream);
     }
 
     @Override
     public void setNClob(int i, Reader reader) throws SQLException {
+        uncaptured(i);
         preparedStatement.setNClob(i, reader);
     }
 }
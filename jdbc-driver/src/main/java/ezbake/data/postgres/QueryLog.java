@@ -0,0 +1,86 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the statements executed on one connection in the driver's {@link QueryStatistics}, if the connection
+ * property <code>ezbakeQueryStatistics</code> is <code>true</code>, and logs those that take longer than the
+ * connection property <code>ezbakeSlowQueryMillis</code>. Slow statements are logged by fingerprint, so no constants
+ * from the SQL reach the log, along with the security ID and principal of the token the session carried so they can
+ * be attributed to an application and user.
+ */
+final class QueryLog {
+    private static final Logger logger = LoggerFactory.getLogger(QueryLog.class);
+
+    /** Statistics to record to, or null if not recording */
+    private final QueryStatistics statistics;
+
+    /** Execution time at or above which statements are logged, or Long.MAX_VALUE if none are */
+    private final long slowNanos;
+
+    /**
+     * Create a query log for a connection.
+     *
+     * @param properties JDBC connection properties
+     */
+    public QueryLog(Properties properties) {
+        this.statistics = Boolean.parseBoolean(properties.getProperty(
+                EzPostgresDriver.EZBAKE_QUERY_STATISTICS_PROPERTY, "false")) ? QueryStatistics.getInstance() : null;
+
+        String slowMillis = properties.getProperty(EzPostgresDriver.EZBAKE_SLOW_QUERY_MILLIS_PROPERTY);
+        this.slowNanos = slowMillis == null
+                ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(Long.parseLong(slowMillis));
+    }
+
+    /**
+     * Record a statement's execution.
+     *
+     * @param sql the statement's SQL, or null if it has none (such as a batch of plain statements)
+     * @param executeNanos time taken executing the statement
+     * @param tokenNanos time taken getting and setting the token before the statement
+     * @param rows rows the statement updated, or -1 if unknown
+     * @param tokenPropertySetter object tracking the token property of the connection's session
+     */
+    public void record(String sql, long executeNanos, long tokenNanos, long rows,
+            TokenPropertySetter tokenPropertySetter) {
+        boolean slow = executeNanos + tokenNanos >= slowNanos && logger.isWarnEnabled();
+        if (sql == null || (statistics == null && !slow)) {
+            return;
+        }
+
+        // Only fingerprint statements that are recorded or logged, since fingerprinting scans the whole SQL
+        String fingerprint = SqlFingerprint.of(sql);
+        if (statistics != null) {
+            statistics.record(fingerprint, executeNanos, tokenNanos, rows);
+        }
+
+        if (slow) {
+            EzSecurityToken token = tokenPropertySetter.getAppliedToken();
+            String securityId = token != null ? SecurityTokens.getSecurityId(token) : null;
+            String principal = token != null ? SecurityTokens.getPrincipal(token) : null;
+
+            logger.warn("Slow statement took {} ms, {} ms of it setting the token, for security ID {} and principal "
+                    + "{}: {}", TimeUnit.NANOSECONDS.toMillis(executeNanos + tokenNanos),
+                    TimeUnit.NANOSECONDS.toMillis(tokenNanos), securityId, principal, fingerprint);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client-side statement statistics, like <code>pg_stat_statements</code>: calls, execution time, rows and time spent
+ * setting the token, per {@link SqlFingerprint SQL fingerprint}, for connections with
+ * <code>ezbakeQueryStatistics=true</code>. Statistics are kept in a concurrent map and updated lock-free.
+ * <p />
+ * Memory is bounded by tracking at most {@link #getMaxFingerprints()} fingerprints. When a new fingerprint would go
+ * over the limit, the tenth of fingerprints with the least total execution time are dropped, so the statements that
+ * cost the most stay tracked. Fingerprints first seen since the previous eviction are only dropped if there aren't
+ * enough older ones, so that a new statement has until the next eviction to build up its time rather than being
+ * dropped again as soon as it is tracked.
+ * <p />
+ * The statistics are published as the MXBean <code>ezbake.data.postgres:type=QueryStatistics</code>.
+ */
+public final class QueryStatistics implements QueryStatisticsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(QueryStatistics.class);
+
+    /** Name the statistics are registered under with the platform MBean server */
+    public static final String OBJECT_NAME = "ezbake.data.postgres:type=QueryStatistics";
+
+    /** Default most fingerprints to track at once */
+    public static final int DEFAULT_MAX_FINGERPRINTS = 500;
+
+    /** Precision of each fingerprint's latency histogram, traded for a smaller one since there are many */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final Comparator<FingerprintStatistics> BY_TOTAL_TIME = new Comparator<FingerprintStatistics>() {
+        @Override
+        public int compare(FingerprintStatistics a, FingerprintStatistics b) {
+            return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+        }
+    };
+
+    private final ConcurrentMap<String, Accumulator> entries = new ConcurrentHashMap<String, Accumulator>();
+    private final Lock evictionLock = new ReentrantLock();
+    private volatile int maxFingerprints = DEFAULT_MAX_FINGERPRINTS;
+
+    /** Number of evictions so far; fingerprints first seen at the current count are protected from the next one */
+    private volatile long generation;
+
+    private QueryStatistics() {
+    }
+
+    /**
+     * @return the driver's statistics, published on first use
+     */
+    public static QueryStatistics getInstance() {
+        return Holder.STATISTICS;
+    }
+
+    /**
+     * Record an execution of a statement.
+     *
+     * @param fingerprint the statement's fingerprint
+     * @param executeNanos time taken executing the statement
+     * @param tokenNanos time taken setting the token before the statement
+     * @param rows rows the statement updated, or -1 if unknown
+     */
+    void record(String fingerprint, long executeNanos, long tokenNanos, long rows) {
+        Accumulator accumulator = entries.get(fingerprint);
+        if (accumulator == null) {
+            if (entries.size() >= maxFingerprints) {
+                evict();
+            }
+
+            Accumulator newAccumulator = new Accumulator(generation);
+            accumulator = entries.putIfAbsent(fingerprint, newAccumulator);
+            if (accumulator == null) {
+                accumulator = newAccumulator;
+            }
+        }
+
+        accumulator.latency.record(executeNanos);
+        accumulator.tokenNanos.addAndGet(tokenNanos);
+        if (rows > 0) {
+            accumulator.rows.addAndGet(rows);
+        }
+    }
+
+    /**
+     * Returns the fingerprints with the most total execution time.
+     *
+     * @param n most fingerprints to return
+     * @return statistics of up to n fingerprints, by descending total execution time
+     */
+    public List<FingerprintStatistics> getTop(int n) {
+        List<FingerprintStatistics> statistics = new ArrayList<FingerprintStatistics>(entries.size());
+        for (Map.Entry<String, Accumulator> entry : entries.entrySet()) {
+            statistics.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        Collections.sort(statistics, BY_TOTAL_TIME);
+
+        return statistics.size() > n ? new ArrayList<FingerprintStatistics>(statistics.subList(0, n)) : statistics;
+    }
+
+    @Override
+    public List<FingerprintStatistics> getStatements() {
+        return getTop(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int getMaxFingerprints() {
+        return maxFingerprints;
+    }
+
+    @Override
+    public void setMaxFingerprints(int maxFingerprints) {
+        if (maxFingerprints < 1) {
+            throw new IllegalArgumentException("Must track at least one fingerprint");
+        }
+
+        this.maxFingerprints = maxFingerprints;
+    }
+
+    @Override
+    public void reset() {
+        entries.clear();
+    }
+
+    /**
+     * Drop the tenth of fingerprints with the least total execution time, taking fingerprints first seen since the
+     * previous eviction only if there aren't enough others. If another thread is already evicting, this one goes ahead
+     * without waiting, so the limit may briefly be exceeded.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            if (entries.size() < maxFingerprints) {
+                return;
+            }
+
+            // Take each total once, since they keep changing while the candidates are sorted
+            long current = generation;
+            List<Candidate> candidates = new ArrayList<Candidate>(entries.size());
+            for (Map.Entry<String, Accumulator> entry : entries.entrySet()) {
+                candidates.add(new Candidate(entry.getKey(), entry.getValue(), current));
+            }
+            Collections.sort(candidates);
+
+            int drop = Math.max(1, candidates.size() / 10);
+            for (Candidate candidate : candidates.subList(0, drop)) {
+                entries.remove(candidate.fingerprint, candidate.accumulator);
+            }
+
+            generation = current + 1;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** A fingerprint considered for eviction, ordered by whether it is protected and then by total execution time */
+    private static class Candidate implements Comparable<Candidate> {
+        final String fingerprint;
+        final Accumulator accumulator;
+        final boolean recent;
+        final long totalNanos;
+
+        Candidate(String fingerprint, Accumulator accumulator, long generation) {
+            this.fingerprint = fingerprint;
+            this.accumulator = accumulator;
+            this.recent = accumulator.generation >= generation;
+            this.totalNanos = accumulator.latency.getTotal();
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (recent != other.recent) {
+                return recent ? 1 : -1;
+            }
+
+            return Long.compare(totalNanos, other.totalNanos);
+        }
+    }
+
+    /** Running statistics of one fingerprint */
+    private static class Accumulator {
+        final LatencyHistogram latency = new LatencyHistogram(SUB_BUCKET_BITS);
+        final AtomicLong tokenNanos = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+
+        /** Evictions there had been when the fingerprint was first seen */
+        final long generation;
+
+        Accumulator(long generation) {
+            this.generation = generation;
+        }
+
+        FingerprintStatistics snapshot(String fingerprint) {
+            LatencyHistogram.Snapshot snapshot = latency.getSnapshot();
+
+            return new FingerprintStatistics(fingerprint, snapshot.getCount(), latency.getTotal(), snapshot.getMean(),
+                    snapshot.getP99(), snapshot.getMax(), rows.get(), tokenNanos.get());
+        }
+    }
+
+    /**
+     * Statistics of one fingerprint at one point in time. All times are in nanoseconds.
+     */
+    public static class FingerprintStatistics {
+        private final String fingerprint;
+        private final long calls;
+        private final long totalNanos;
+        private final long meanNanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+        private final long rows;
+        private final long tokenNanos;
+
+        @ConstructorProperties({"fingerprint", "calls", "totalNanos", "meanNanos", "p99Nanos", "maxNanos", "rows",
+                "tokenNanos"})
+        public FingerprintStatistics(String fingerprint, long calls, long totalNanos, long meanNanos, long p99Nanos,
+                long maxNanos, long rows, long tokenNanos) {
+            this.fingerprint = fingerprint;
+            this.calls = calls;
+            this.totalNanos = totalNanos;
+            this.meanNanos = meanNanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+            this.rows = rows;
+            this.tokenNanos = tokenNanos;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * @return rows updated by the statement's executions; rows returned by queries aren't counted
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return total time spent getting and setting the token before the statement's executions
+         */
+        public long getTokenNanos() {
+            return tokenNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: calls=%d total=%d mean=%d p99=%d max=%d rows=%d token=%d",
+                    fingerprint, calls, totalNanos, meanNanos, p99Nanos, maxNanos, rows, tokenNanos);
+        }
+    }
+
+    private static class Holder {
+        static final QueryStatistics STATISTICS = publish(new QueryStatistics());
+
+        private static QueryStatistics publish(QueryStatistics statistics) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                // Another copy of the driver, in another class loader, may have registered first
+                logger.warn("Could not register query statistics with JMX", e);
+            }
+
+            return statistics;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import java.util.List;
+
+/**
+ * JMX view of the driver's {@link QueryStatistics}.
+ */
+public interface QueryStatisticsMXBean {
+
+    /**
+     * @return statistics of every tracked fingerprint, by descending total execution time
+     */
+    List<QueryStatistics.FingerprintStatistics> getStatements();
+
+    /**
+     * @return most fingerprints tracked at once
+     */
+    int getMaxFingerprints();
+
+    /**
+     * @param maxFingerprints most fingerprints to track at once
+     */
+    void setMaxFingerprints(int maxFingerprints);
+
+    /**
+     * Forget all statistics recorded so far.
+     */
+    void reset();
+}
@@ -0,0 +1,43 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.security.common.core.EzSecurityClient;
+
+import javax.inject.Provider;
+
+/**
+ * A token provider that provides the token bound to the current thread with {@link EzPostgresTokens#bind}. No call is
+ * made to the security service; the application is trusted to bind a token it already holds. If no token is bound,
+ * none is provided and statements fail.
+ */
+class ScopedTokenProvider implements Provider<EzSecurityToken> {
+
+    /**
+     * Constructs a new provider. The security client is never asked for, so none is created for connections using
+     * this provider, but it is accepted so that the provider can be named by the <code>ezbakeTokenProvider</code>
+     * property.
+     *
+     * @param securityClient provider of the security client
+     */
+    public ScopedTokenProvider(Provider<EzSecurityClient> securityClient) {
+    }
+
+    @Override
+    public EzSecurityToken get() {
+        return EzPostgresTokens.current();
+    }
+}
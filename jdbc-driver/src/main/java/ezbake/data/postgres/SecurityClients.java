@@ -0,0 +1,192 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.configuration.EzConfiguration;
+import ezbake.configuration.EzConfigurationLoaderException;
+import ezbake.security.client.EzbakeSecurityClient;
+import ezbake.security.common.core.EzSecurityClient;
+
+import javax.inject.Provider;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The EzBake security clients shared by connections, one per distinct security configuration. Kept apart from
+ * {@link EzPostgresDriver} so that loading the driver doesn't load the EzBake configuration and security classes
+ * before the first connection needs them.
+ */
+final class SecurityClients {
+
+    /**
+     * Prefixes of the EzBake configuration properties that can configure a security client: its own settings and those
+     * of the application, Thrift and ZooKeeper that it connects with
+     */
+    private static final String[] SECURITY_PROPERTY_PREFIXES = {
+            "ezbake.", "application.", "service.", "security.", "thrift.", "zookeeper."};
+
+    /** Security clients by their configuration, created once each */
+    private static final ConcurrentMap<Map<String, String>, FutureTask<EzSecurityClient>> securityClients =
+            new ConcurrentHashMap<Map<String, String>, FutureTask<EzSecurityClient>>();
+
+    private SecurityClients() {
+    }
+
+    /**
+     * Returns the security client for the security configuration in the given properties, creating it if this is the
+     * first connection with that configuration. Once created, a client is looked up without locking.
+     *
+     * @param properties JDBC connection properties, or null to read the configuration using EzConfiguration
+     * @return a security client
+     * @throws EzConfigurationLoaderException if the EzBake configuration cannot be loaded
+     */
+    public static EzSecurityClient get(Properties properties) throws EzConfigurationLoaderException {
+        if (properties == null) {
+            properties = new EzConfiguration().getProperties();
+        }
+
+        Map<String, String> configuration = getSecurityConfiguration(properties);
+        FutureTask<EzSecurityClient> client = securityClients.get(configuration);
+        if (client == null) {
+            final Properties clientProperties = properties;
+            FutureTask<EzSecurityClient> newClient = new FutureTask<EzSecurityClient>(
+                    new Callable<EzSecurityClient>() {
+                        @Override
+                        public EzSecurityClient call() {
+                            return createSecurityClient(clientProperties);
+                        }
+                    });
+
+            client = securityClients.putIfAbsent(configuration, newClient);
+            if (client == null) {
+                client = newClient;
+                client.run();
+            }
+        }
+
+        try {
+            return client.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the security client to be created", e);
+        } catch (ExecutionException e) {
+            // Let the next connection try again
+            securityClients.remove(configuration, client);
+
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Could not create security client", e.getCause());
+        }
+    }
+
+    /**
+     * Returns a provider of the security client for the security configuration in the given properties, which looks
+     * the client up, creating it if necessary, only when first asked for it. Token providers that never use the
+     * security client then don't create one.
+     *
+     * @param properties JDBC connection properties
+     * @return a provider of the security client
+     */
+    public static Provider<EzSecurityClient> lazy(final Properties properties) {
+        return new Provider<EzSecurityClient>() {
+            private volatile EzSecurityClient client;
+
+            @Override
+            public EzSecurityClient get() {
+                EzSecurityClient result = client;
+                if (result == null) {
+                    try {
+                        result = SecurityClients.get(properties);
+                    } catch (EzConfigurationLoaderException e) {
+                        throw new IllegalStateException("Could not load the security configuration", e);
+                    }
+                    client = result;
+                }
+
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Creates the security client named by the <code>ezbakeSecurityClient</code> property, which must implement
+     * EzSecurityClient and have a constructor taking the configuration properties. The class isn't initialized unless
+     * it implements EzSecurityClient.
+     *
+     * @param properties JDBC connection properties
+     * @return a new security client
+     */
+    private static EzSecurityClient createSecurityClient(Properties properties) {
+        String className = properties.getProperty(EzPostgresDriver.EZBAKE_SECURITY_CLIENT_PROPERTY);
+        if (className == null || className.equals(EzbakeSecurityClient.class.getName())) {
+            return new EzbakeSecurityClient(properties);
+        }
+
+        try {
+            return EzPostgresDriver.loadClass(className, EzSecurityClient.class)
+                    .getConstructor(Properties.class).newInstance(properties);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not create security client " + className, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create security client " + className, e);
+        }
+    }
+
+    /**
+     * Returns the properties that configure a security client: the class of client and the EzBake configuration
+     * properties it may read. Everything else, such as the connection's own properties and any other application
+     * settings, is left out, so that connections differing only in those share a client.
+     *
+     * @param properties JDBC connection properties
+     * @return security configuration, usable as a map key
+     */
+    private static Map<String, String> getSecurityConfiguration(Properties properties) {
+        Map<String, String> configuration = new TreeMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            if (isSecurityProperty(name)) {
+                configuration.put(name, properties.getProperty(name));
+            }
+        }
+
+        return configuration;
+    }
+
+    private static boolean isSecurityProperty(String name) {
+        if (name.equals(EzPostgresDriver.EZBAKE_SECURITY_CLIENT_PROPERTY)) {
+            return true;
+        }
+
+        for (String prefix : SECURITY_PROPERTY_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+
+/**
+ * Helpers for inspecting EzSecurityTokens.
+ */
+final class SecurityTokens {
+
+    private SecurityTokens() {
+    }
+
+    /**
+     * Returns the time after which the token is no longer valid.
+     *
+     * @param token a token
+     * @return expiration time in milliseconds since the epoch, or Long.MAX_VALUE if the token carries none
+     */
+    public static long getExpirationMillis(EzSecurityToken token) {
+        if (token.getValidity() == null) {
+            return Long.MAX_VALUE;
+        }
+
+        return token.getValidity().getNotAfter();
+    }
+
+    /**
+     * Returns the principal a token was issued for, such as a user's DN or an application's security ID.
+     *
+     * @param token a token
+     * @return the token's principal, or null if it names none
+     */
+    public static String getPrincipal(EzSecurityToken token) {
+        if (token.getTokenPrincipal() == null) {
+            return null;
+        }
+
+        return token.getTokenPrincipal().getPrincipal();
+    }
+
+    /**
+     * Returns the security ID of the application a token was issued to.
+     *
+     * @param token a token
+     * @return the application's security ID, or null if the token names none
+     */
+    public static String getSecurityId(EzSecurityToken token) {
+        if (token.getValidity() == null) {
+            return null;
+        }
+
+        return token.getValidity().getIssuedTo();
+    }
+
+    /**
+     * Returns the time at which a cached token should be replaced, some margin before it expires. The margin is capped
+     * at half the token's lifetime so that short-lived tokens are still used for a while.
+     *
+     * @param token a token
+     * @param marginMillis how long before expiration the token should be replaced
+     * @return refresh time in milliseconds since the epoch, or Long.MAX_VALUE if the token never expires
+     */
+    public static long getRefreshMillis(EzSecurityToken token, long marginMillis) {
+        long expiration = getExpirationMillis(token);
+        if (expiration == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+
+        long issued = token.getValidity().getIssuedTime();
+        if (issued > 0 && issued < expiration) {
+            marginMillis = Math.min(marginMillis, (expiration - issued) / 2);
+        }
+
+        return expiration - marginMillis;
+    }
+}
@@ -19,17 +19,39 @@ import ezbake.base.thrift.EzSecurityTokenException;
 import ezbake.security.common.core.EzSecurityClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 
 import javax.inject.Provider;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A token provider that provides proxied user tokens from a security client. Calls
- * {@link ezbake.security.common.core.EzSecurityClient#fetchTokenForProxiedUser()} (int, int)} to obtain the token from
- * the current Spring Security context.
+ * Provides the token of the user in the current Spring Security context. Tokens are cached per proxied principal and
+ * shared by every provider built on the same security client, until shortly before they expire. Concurrent requests
+ * for a principal whose token isn't cached wait for a single fetch. Cache hits, misses and fetch latency are recorded
+ * in {@link EzPostgresMetrics}.
  */
 class SpringSecurityContextTokenProvider implements Provider<EzSecurityToken> {
     private static final Logger logger = LoggerFactory.getLogger(SpringSecurityContextTokenProvider.class);
+
+    /** Fetch a new token for a principal this long before the cached one expires */
+    static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Maximum number of principals whose tokens are cached per security client */
+    static final int MAX_CACHED_PRINCIPALS = 10000;
+
+    private static final ConcurrentMap<EzSecurityClient, TokenCache> caches =
+            new ConcurrentHashMap<EzSecurityClient, TokenCache>();
+
     private EzSecurityClient securityClient;
+    private TokenCache cache;
 
     /**
      * Constructs a new provider that gets proxied user tokens from the security client.
@@ -38,18 +60,207 @@ class SpringSecurityContextTokenProvider implements Provider<EzSecurityToken> {
      */
     public SpringSecurityContextTokenProvider(EzSecurityClient securityClient) {
         this.securityClient = securityClient;
+
+        TokenCache newCache = new TokenCache();
+        TokenCache existingCache = caches.putIfAbsent(securityClient, newCache);
+        this.cache = existingCache == null ? newCache : existingCache;
     }
 
     @Override
     public EzSecurityToken get() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || authentication.getName() == null) {
+            // Nothing to key the cache on, so let the security client work out who is calling
+            return fetch();
+        }
+
+        return cache.get(authentication.getName(), this);
+    }
+
+    /**
+     * @param securityClient security client
+     * @return number of principals whose tokens are cached for the security client
+     */
+    static int cachedPrincipals(EzSecurityClient securityClient) {
+        TokenCache cache = caches.get(securityClient);
+        return cache == null ? 0 : cache.size();
+    }
+
+    private EzSecurityToken fetch() {
         EzSecurityToken token = null;
+        long start = System.nanoTime();
 
         try {
             token = securityClient.fetchTokenForProxiedUser();
         } catch (EzSecurityTokenException e) {
             logger.error("Couldn't get proxied user token from security client", e);
+        } finally {
+            EzPostgresMetrics.getInstance().recordTokenFetch(start);
         }
 
         return token;
     }
-}
\ No newline at end of file
+
+    /**
+     * Tokens cached by principal for a single security client.
+     * <p />
+     * Lookups don't lock, and mark the token they hit as referenced. Once the cache is full, tokens are evicted in
+     * insertion order, except that a referenced token gets a second chance: it is moved to the back and its mark is
+     * cleared. This approximates evicting the least recently used token without ordering the cache on every hit.
+     */
+    private static class TokenCache {
+        private final ConcurrentMap<String, CachedToken> tokens = new ConcurrentHashMap<String, CachedToken>(
+                256, 0.75f, Runtime.getRuntime().availableProcessors() * 4);
+
+        /** The cached tokens in eviction order; guards every change to {@link #tokens} */
+        private final LinkedHashMap<String, CachedToken> order = new LinkedHashMap<String, CachedToken>();
+
+        private final EzPostgresMetrics metrics = EzPostgresMetrics.getInstance();
+
+        EzSecurityToken get(String principal, final SpringSecurityContextTokenProvider provider) {
+            CachedToken cached = tokens.get(principal);
+            if (cached != null) {
+                if (cached.isUsable(System.currentTimeMillis())) {
+                    cached.referenced = true;
+                    metrics.recordTokenCacheHit();
+                    return cached.getToken();
+                }
+
+                if (cached.isDone()) {
+                    remove(principal, cached);
+                    cached = null;
+                }
+            }
+
+            metrics.recordTokenCacheMiss();
+            if (cached == null) {
+                // The fetch must run on this thread, since it reads this thread's security context
+                CachedToken loading = new CachedToken(new Callable<EzSecurityToken>() {
+                    @Override
+                    public EzSecurityToken call() {
+                        return provider.fetch();
+                    }
+                });
+
+                cached = putIfAbsent(principal, loading);
+                if (cached == null) {
+                    cached = loading;
+                    loading.load();
+                }
+            }
+
+            EzSecurityToken token = cached.getToken();
+            if (token == null) {
+                // Don't cache failures
+                remove(principal, cached);
+            }
+
+            return token;
+        }
+
+        /**
+         * @return number of principals whose tokens are cached or being fetched
+         */
+        int size() {
+            return tokens.size();
+        }
+
+        private CachedToken putIfAbsent(String principal, CachedToken loading) {
+            synchronized (order) {
+                CachedToken existing = tokens.putIfAbsent(principal, loading);
+                if (existing == null) {
+                    order.put(principal, loading);
+                    evictIfFull();
+                }
+
+                return existing;
+            }
+        }
+
+        private void remove(String principal, CachedToken cached) {
+            synchronized (order) {
+                if (tokens.remove(principal, cached)) {
+                    order.remove(principal);
+                }
+            }
+        }
+
+        /**
+         * Evict tokens from the front of the order until the cache is back to its size limit, giving tokens that are
+         * still being fetched and referenced unexpired tokens a second chance. Called with the order locked.
+         */
+        private void evictIfFull() {
+            long now = System.currentTimeMillis();
+            for (int i = 0, limit = 2 * order.size(); order.size() > MAX_CACHED_PRINCIPALS && i < limit; i++) {
+                Map.Entry<String, CachedToken> eldest = order.entrySet().iterator().next();
+                String principal = eldest.getKey();
+                CachedToken cached = eldest.getValue();
+
+                order.remove(principal);
+                if (!cached.isDone() || cached.referenced && cached.isUsable(now)) {
+                    cached.referenced = false;
+                    order.put(principal, cached);
+                } else {
+                    tokens.remove(principal, cached);
+                }
+            }
+        }
+    }
+
+    /**
+     * A token that is either loaded or being loaded by one thread while others wait for it.
+     */
+    private static class CachedToken {
+        private final FutureTask<EzSecurityToken> task;
+        private volatile long refreshMillis;
+
+        /** Whether the token was hit since it was last considered for eviction */
+        volatile boolean referenced;
+
+        CachedToken(Callable<EzSecurityToken> loader) {
+            this.task = new FutureTask<EzSecurityToken>(loader) {
+                @Override
+                protected void set(EzSecurityToken token) {
+                    // Publish the refresh time before the token becomes visible as done
+                    if (token != null) {
+                        refreshMillis = SecurityTokens.getRefreshMillis(token, REFRESH_MARGIN_MILLIS);
+                    }
+
+                    super.set(token);
+                }
+            };
+        }
+
+        void load() {
+            task.run();
+        }
+
+        boolean isDone() {
+            return task.isDone();
+        }
+
+        boolean isUsable(long now) {
+            return task.isDone() && now < refreshMillis;
+        }
+
+        EzSecurityToken getToken() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                logger.error("Couldn't get proxied user token from security client", e.getCause());
+                return null;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Normalizes SQL into a fingerprint shared by all statements that differ only in their constants, in the manner of
+ * <code>pg_stat_statements</code>. String, dollar-quoted and numeric constants and positional parameters become
+ * <code>?</code>, lists of them collapse to a single <code>?</code>, comments are dropped, runs of whitespace become a
+ * single space and unquoted words are lower-cased. Fingerprints never contain the statement's constants, so they are
+ * safe to log.
+ */
+final class SqlFingerprint {
+
+    /** Longest fingerprint kept; longer ones are truncated */
+    static final int MAX_LENGTH = 2048;
+
+    /** Most fingerprints of recently seen SQL to remember */
+    private static final int MAX_CACHED = 1024;
+
+    /** Fingerprints of recently seen SQL, so that repeated statements are only normalized once */
+    private static final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
+
+    private SqlFingerprint() {
+    }
+
+    /**
+     * Returns the fingerprint of some SQL.
+     *
+     * @param sql SQL to fingerprint
+     * @return the SQL's fingerprint
+     */
+    public static String of(String sql) {
+        String fingerprint = cache.get(sql);
+        if (fingerprint == null) {
+            fingerprint = normalize(sql);
+
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            cache.put(sql, fingerprint);
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * Normalizes SQL without consulting the cache.
+     *
+     * @param sql SQL to normalize
+     * @return the SQL's fingerprint
+     */
+    static String normalize(String sql) {
+        StringBuilder out = new StringBuilder(Math.min(sql.length(), MAX_LENGTH));
+        int length = sql.length();
+        int i = 0;
+        while (i < length && out.length() < MAX_LENGTH) {
+            char c = sql.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                i = skipWhitespace(sql, i);
+                if (out.length() > 0 && out.charAt(out.length() - 1) != ' ' && i < length) {
+                    out.append(' ');
+                }
+            } else if (c == '-' && sql.startsWith("--", i)) {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end;
+            } else if (c == '/' && sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else if (c == '\'') {
+                // An E prefix means backslash escapes; it was already copied as a word
+                boolean escapes = endsWithWord(out, 'e');
+                if (escapes) {
+                    out.setLength(out.length() - 1);
+                }
+                i = skipString(sql, i, escapes);
+                appendPlaceholder(out);
+            } else if (c == '"') {
+                int end = sql.indexOf('"', i + 1);
+                end = end < 0 ? length : end + 1;
+                out.append(sql, i, end);
+                i = end;
+            } else if (c == '$' && i + 1 < length && Character.isDigit(sql.charAt(i + 1))) {
+                i = skipDigits(sql, i + 1);
+                appendPlaceholder(out);
+            } else if (c == '$' && (out.length() == 0 || !isWordChar(out.charAt(out.length() - 1)))) {
+                int tagEnd = sql.indexOf('$', i + 1);
+                if (tagEnd < 0) {
+                    out.append(c);
+                    i++;
+                } else {
+                    String tag = sql.substring(i, tagEnd + 1);
+                    int end = sql.indexOf(tag, tagEnd + 1);
+                    i = end < 0 ? length : end + tag.length();
+                    appendPlaceholder(out);
+                }
+            } else if (c == '?') {
+                appendPlaceholder(out);
+                i++;
+            } else if (Character.isDigit(c) && (out.length() == 0 || !isWordChar(out.charAt(out.length() - 1)))) {
+                i = skipNumber(sql, i);
+                appendPlaceholder(out);
+            } else {
+                out.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+
+        if (out.length() > MAX_LENGTH) {
+            out.setLength(MAX_LENGTH);
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Append a placeholder, unless it continues a comma-separated list of placeholders.
+     */
+    private static void appendPlaceholder(StringBuilder out) {
+        int end = out.length();
+        while (end > 0 && out.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end > 0 && out.charAt(end - 1) == ',') {
+            int before = end - 1;
+            while (before > 0 && out.charAt(before - 1) == ' ') {
+                before--;
+            }
+            if (before > 0 && out.charAt(before - 1) == '?') {
+                out.setLength(before);
+                return;
+            }
+        }
+
+        out.append('?');
+    }
+
+    private static boolean endsWithWord(StringBuilder out, char word) {
+        int length = out.length();
+        return length > 0 && out.charAt(length - 1) == word && (length == 1 || !isWordChar(out.charAt(length - 2)));
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static int skipWhitespace(String sql, int i) {
+        while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+
+        return i;
+    }
+
+    private static int skipDigits(String sql, int i) {
+        while (i < sql.length() && Character.isDigit(sql.charAt(i))) {
+            i++;
+        }
+
+        return i;
+    }
+
+    private static int skipNumber(String sql, int i) {
+        i = skipDigits(sql, i);
+        if (i < sql.length() && sql.charAt(i) == '.') {
+            i = skipDigits(sql, i + 1);
+        }
+        if (i < sql.length() && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int exponent = i + 1;
+            if (exponent < sql.length() && (sql.charAt(exponent) == '+' || sql.charAt(exponent) == '-')) {
+                exponent++;
+            }
+            if (exponent < sql.length() && Character.isDigit(sql.charAt(exponent))) {
+                i = skipDigits(sql, exponent);
+            }
+        }
+
+        return i;
+    }
+
+    /**
+     * Skip a quoted string, along with any quoted strings directly following it, which SQL concatenates.
+     */
+    private static int skipString(String sql, int i, boolean escapes) {
+        int length = sql.length();
+        i++;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (escapes && c == '\\') {
+                i += 2;
+            } else if (c == '\'') {
+                if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+
+        return length;
+    }
+}
@@ -15,82 +15,222 @@
 package ezbake.data.postgres;
 
 import ezbake.base.thrift.EzSecurityToken;
-import ezbake.thrift.ThriftUtils;
-import org.apache.thrift.TException;
 
-import javax.inject.Provider;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A statement that sets an EzBake security token as a database property before executing any statements. Wraps a real
  * JDBC statement.
  */
-class StatementDecorator implements Statement {
+class StatementDecorator implements EzPostgresStatement {
 
     /** Database property to set token to */
     public static final String SECURITY_TOKEN_PROPERTY_NAME = "ezbake.token";
 
     private Statement statement;
-    private Provider<EzSecurityToken> tokenProvider;
+    private ConnectionDecorator connectionDecorator;
+    private List<String> invalidatingBatchSql;
+    private EzSecurityToken securityToken;
+
+    /** Time taken getting and setting the token for the statement being executed */
+    private long tokenNanos;
+
+    /** Span of the statement being executed, or null if it isn't traced */
+    private EzPostgresTracer.Span executionSpan;
 
     /**
      * Wrap an existing JDBC statement.
      *
      * @param statement statement to wrap
-     * @param tokenProvider token provider
+     * @param connectionDecorator decorated connection that created the statement
      */
-    public StatementDecorator(Statement statement, Provider<EzSecurityToken> tokenProvider) {
+    public StatementDecorator(Statement statement, ConnectionDecorator connectionDecorator) {
         this.statement = statement;
-        this.tokenProvider = tokenProvider;
+        this.connectionDecorator = connectionDecorator;
     }
 
     /**
      * Set security token to database property. The property is set to the base64 encoded EzSecurityToken object
-     * provided by the token provider.
+     * provided by the token provider. Nothing is sent if the connection's session already carries the token.
      *
      * @throws SQLException if the property-setting statement could not be executed
      */
     protected void executeSetTokenProperty() throws SQLException {
-        EzSecurityToken token = tokenProvider.get();
-        if (token == null) {
-            throw new SQLException("Could not get security token from token provider");
+        long start = System.nanoTime();
+        connectionDecorator.applySecurityToken(securityToken);
+        tokenNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Set security token to database property before executing the given SQL. If the SQL may revert the property, the
+     * connection is told to set it again before the next statement.
+     *
+     * @param sql SQL about to be executed
+     * @throws SQLException if the property-setting statement could not be executed
+     */
+    protected void executeSetTokenProperty(String sql) throws SQLException {
+        executeSetTokenProperty();
+        connectionDecorator.getTokenPropertySetter().invalidate(sql);
+    }
+
+    /**
+     * Set security token to database property and execute the given SQL in the same query, if the connection allows
+     * piggybacking the token. Otherwise, or if the session already carries the token, only the property is set (when
+     * needed) and the caller must execute the SQL itself.
+     * <p />
+     * The piggybacked query has the property-setting command as its first result. On return, the wrapped statement is
+     * positioned on the first result of the given SQL.
+     *
+     * @param sql SQL to execute
+     * @return true if the SQL was executed, false if the caller must execute it
+     * @throws SQLException if the property could not be set or the SQL could not be executed
+     */
+    protected boolean executeWithTokenProperty(String sql) throws SQLException {
+        // Cursor-based fetching is only done for single-statement queries, so don't take that away from the caller
+        String tokenCommand = null;
+        if (statement.getFetchSize() == 0) {
+            long start = System.nanoTime();
+            tokenCommand = connectionDecorator.beginTokenPiggyback(securityToken);
+            tokenNanos = System.nanoTime() - start;
+        } else {
+            executeSetTokenProperty();
         }
 
-        String serializedToken;
-        try {
-            serializedToken = ThriftUtils.serializeToBase64(token);
-        } catch (TException e) {
-            throw new SQLException(e);
+        if (tokenCommand != null) {
+            TokenPropertySetter tokenPropertySetter = connectionDecorator.getTokenPropertySetter();
+            boolean success = false;
+            long start = beginExecution();
+            try {
+                statement.execute(tokenCommand + sql);
+                statement.getMoreResults();
+                success = true;
+            } finally {
+                tokenPropertySetter.completePiggyback(success);
+                recordExecution(sql, start, -1);
+            }
+        }
+
+        connectionDecorator.getTokenPropertySetter().invalidate(sql);
+
+        return tokenCommand != null;
+    }
+
+    /**
+     * Start timing, and if sampled tracing, a statement's execution. Must be followed by
+     * {@link #recordExecution(String, long, long)} once the statement completes.
+     *
+     * @return time the statement is sent, from {@link System#nanoTime()}
+     */
+    protected long beginExecution() {
+        EzPostgresTracer tracer = EzPostgresTracer.getInstance();
+        if (tracer.isSampled(EzPostgresTracer.Operation.EXECUTE)) {
+            executionSpan = tracer.startSpan(EzPostgresTracer.Operation.EXECUTE);
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a statement's execution in the driver's metrics, the connection's query log and the execution's span.
+     *
+     * @param sql the statement's SQL, or null if it has none
+     * @param startNanos time the statement was sent, from {@link #beginExecution()}
+     * @param rows rows the statement updated, or -1 if unknown
+     */
+    protected void recordExecution(String sql, long startNanos, long rows) {
+        EzPostgresTracer.Span span = executionSpan;
+        executionSpan = null;
+        connectionDecorator.recordStatement(sql, System.nanoTime() - startNanos, tokenNanos, rows, span);
+        tokenNanos = 0;
+    }
+
+    /**
+     * @return the SQL that batches of this statement execute, or null if each batched statement has its own
+     */
+    protected String getSql() {
+        return null;
+    }
+
+    /**
+     * @return total rows updated by a batch, or -1 if unknown
+     */
+    static long sum(int[] counts) {
+        if (counts == null) {
+            return -1;
         }
 
-        // In case the wrapped statement is a PreparedStatement or a CallableStatement, in which case it can't take a
-        // query string on its own. The connection we're getting is from the wrapped (true) implementation.
-        Statement propertyStatement = getConnection().createStatement();
-        propertyStatement.execute(String.format("set %s = '%s';", SECURITY_TOKEN_PROPERTY_NAME, serializedToken));
-        propertyStatement.close();
+        long rows = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                rows += count;
+            }
+        }
+
+        return rows;
+    }
+
+    @Override
+    public void setSecurityToken(EzSecurityToken token) {
+        this.securityToken = token;
+    }
+
+    @Override
+    public EzSecurityToken getSecurityToken() {
+        return securityToken;
     }
 
     @Override
     public ResultSet executeQuery(String s) throws SQLException {
-        executeSetTokenProperty();
+        if (executeWithTokenProperty(s)) {
+            ResultSet resultSet = statement.getResultSet();
+            if (resultSet == null) {
+                throw new SQLException("No results were returned by the query.");
+            }
 
-        return statement.executeQuery(s);
+            return resultSet;
+        }
+
+        long start = beginExecution();
+        try {
+            return statement.executeQuery(s);
+        } finally {
+            recordExecution(s, start, -1);
+        }
     }
 
     @Override
     public int executeUpdate(String s) throws SQLException {
-        executeSetTokenProperty();
+        if (executeWithTokenProperty(s)) {
+            if (statement.getResultSet() != null) {
+                throw new SQLException("A result was returned when none was expected.");
+            }
 
-        return statement.executeUpdate(s);
+            return statement.getUpdateCount();
+        }
+
+        long start = beginExecution();
+        int rows = -1;
+        try {
+            rows = statement.executeUpdate(s);
+            return rows;
+        } finally {
+            recordExecution(s, start, rows);
+        }
     }
 
     @Override
     public void close() throws SQLException {
-        statement.close();
+        try {
+            statement.close();
+        } finally {
+            connectionDecorator.closed(this);
+        }
     }
 
     @Override
@@ -150,9 +290,16 @@ class StatementDecorator implements Statement {
 
     @Override
     public boolean execute(String s) throws SQLException {
-        executeSetTokenProperty();
+        if (executeWithTokenProperty(s)) {
+            return statement.getResultSet() != null;
+        }
 
-        return statement.execute(s);
+        long start = beginExecution();
+        try {
+            return statement.execute(s);
+        } finally {
+            recordExecution(s, start, -1);
+        }
     }
 
     @Override
@@ -203,18 +350,40 @@ class StatementDecorator implements Statement {
     @Override
     public void addBatch(String s) throws SQLException {
         statement.addBatch(s);
+        if (TokenPropertySetter.invalidatesToken(s)) {
+            if (invalidatingBatchSql == null) {
+                invalidatingBatchSql = new ArrayList<String>();
+            }
+            invalidatingBatchSql.add(s);
+        }
     }
 
     @Override
     public void clearBatch() throws SQLException {
         statement.clearBatch();
+        invalidatingBatchSql = null;
     }
 
     @Override
     public int[] executeBatch() throws SQLException {
-        executeSetTokenProperty();
+        // A prepared statement's batch executes its own SQL, which may revert the token too
+        executeSetTokenProperty(getSql());
+
+        if (invalidatingBatchSql != null) {
+            for (String sql : invalidatingBatchSql) {
+                connectionDecorator.getTokenPropertySetter().invalidate(sql);
+            }
+            invalidatingBatchSql = null;
+        }
 
-        return statement.executeBatch();
+        long start = beginExecution();
+        int[] counts = null;
+        try {
+            counts = statement.executeBatch();
+            return counts;
+        } finally {
+            recordExecution(getSql(), start, sum(counts));
+        }
     }
 
     @Override
@@ -234,44 +403,80 @@ class StatementDecorator implements Statement {
 
     @Override
     public int executeUpdate(String s, int i) throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(s);
 
-        return statement.executeUpdate(s, i);
+        long start = beginExecution();
+        int rows = -1;
+        try {
+            rows = statement.executeUpdate(s, i);
+            return rows;
+        } finally {
+            recordExecution(s, start, rows);
+        }
     }
 
     @Override
     public int executeUpdate(String s, int[] ints) throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(s);
 
-        return statement.executeUpdate(s, ints);
+        long start = beginExecution();
+        int rows = -1;
+        try {
+            rows = statement.executeUpdate(s, ints);
+            return rows;
+        } finally {
+            recordExecution(s, start, rows);
+        }
     }
 
     @Override
     public int executeUpdate(String s, String[] strings) throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(s);
 
-        return statement.executeUpdate(s, strings);
+        long start = beginExecution();
+        int rows = -1;
+        try {
+            rows = statement.executeUpdate(s, strings);
+            return rows;
+        } finally {
+            recordExecution(s, start, rows);
+        }
     }
 
     @Override
     public boolean execute(String s, int i) throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(s);
 
-        return statement.execute(s, i);
+        long start = beginExecution();
+        try {
+            return statement.execute(s, i);
+        } finally {
+            recordExecution(s, start, -1);
+        }
     }
 
     @Override
     public boolean execute(String s, int[] ints) throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(s);
 
-        return statement.execute(s, ints);
+        long start = beginExecution();
+        try {
+            return statement.execute(s, ints);
+        } finally {
+            recordExecution(s, start, -1);
+        }
     }
 
     @Override
     public boolean execute(String s, String[] strings) throws SQLException {
-        executeSetTokenProperty();
+        executeSetTokenProperty(s);
 
-        return statement.execute(s, strings);
+        long start = beginExecution();
+        try {
+            return statement.execute(s, strings);
+        } finally {
+            recordExecution(s, start, -1);
+        }
     }
 
     @Override
@@ -305,13 +510,18 @@ class StatementDecorator implements Statement {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T> T unwrap(Class<T> tClass) throws SQLException {
+        if (tClass.isInstance(this)) {
+            return (T) this;
+        }
+
         return statement.unwrap(tClass);
     }
 
     @Override
     public boolean isWrapperFor(Class<?> aClass) throws SQLException {
-        return statement.isWrapperFor(aClass);
+        return aClass.isInstance(this) || statement.isWrapperFor(aClass);
     }
 
     @Override
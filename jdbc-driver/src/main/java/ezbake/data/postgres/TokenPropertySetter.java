@@ -0,0 +1,577 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.thrift.ThriftUtils;
+import org.apache.thrift.TException;
+import org.postgresql.PGStatement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Sets the EzBake security token database property on one physical connection. The token last applied to the session
+ * is remembered so that consecutive statements executed with the same token don't re-issue the property-setting
+ * statement. The property is set through a <code>set_config</code> call that is prepared once per connection and then
+ * executed with the token as a bound parameter.
+ * <p />
+ * The remembered token is a private copy of the applied token, so a caller that mutates its token object in place is
+ * still detected as having changed tokens. Anything that may revert the session setting (rollbacks, resets, closing the
+ * connection) must call {@link #invalidate()}.
+ * <p />
+ * The serialized forms of the last few tokens are cached, so switching back to a recently used token or re-setting it
+ * after an invalidation doesn't serialize it again.
+ * <p />
+ * When piggybacking is enabled (<code>ezbakeTokenPiggyback=true</code>), statements that are sent as simple queries
+ * can prepend the property-setting command to their own SQL with {@link #beginPiggyback(EzSecurityToken)} instead of
+ * paying a separate round trip for it.
+ * <p />
+ * When token handles are enabled (<code>ezbakeTokenHandles=true</code>), each distinct token is sent once per
+ * connection to the extension's <code>register_token</code> function, which keeps it decoded in the backend and
+ * returns a short handle. Later sets of the same token only send the handle. Handles are tracked here rather than by
+ * the backend evicting them, so the property is never set to a handle the backend has forgotten.
+ * <p />
+ * When transaction scoping is enabled (<code>ezbakeTokenTransactionScoped=true</code>) and the connection isn't in
+ * auto-commit mode, the token is set once at the start of each transaction with <code>is_local</code> true, and the
+ * rest of the transaction's statements don't ask the token provider for it at all. {@link #endTransaction()} must be
+ * called whenever the transaction ends.
+ */
+class TokenPropertySetter {
+
+    /** Number of recently serialized tokens to remember per connection */
+    private static final int SERIALIZED_TOKEN_CACHE_SIZE = 4;
+
+    /** Statements that may revert or overwrite the token property behind our back */
+    private static final Pattern INVALIDATING_SQL = Pattern.compile(
+            "^\\s*(reset|discard|deallocate|rollback|abort)\\b|ezbake\\.token", Pattern.CASE_INSENSITIVE);
+
+    /** Statements that end a transaction, reverting any transaction-local token */
+    private static final Pattern TRANSACTION_ENDING_SQL = Pattern.compile(
+            "^\\s*(commit|end)\\b", Pattern.CASE_INSENSITIVE);
+
+    /** Statements that may deallocate our prepared property-setting statement */
+    private static final Pattern DEALLOCATING_SQL = Pattern.compile(
+            "^\\s*(discard|deallocate)\\b", Pattern.CASE_INSENSITIVE);
+
+    private static final String SET_CONFIG_SQL =
+            "select set_config('" + StatementDecorator.SECURITY_TOKEN_PROPERTY_NAME + "', ?, ?)";
+
+    private static final String REGISTER_SQL =
+            "select set_config('" + StatementDecorator.SECURITY_TOKEN_PROPERTY_NAME + "', register_token(?, ?), ?)";
+
+    /** Number of token handles to keep registered in a backend before starting over */
+    static final int MAX_REGISTERED_TOKENS = 64;
+
+    private final Connection connection;
+    private final boolean piggybackEnabled;
+    private final boolean tokenHandlesEnabled;
+    private final boolean transactionScoped;
+    private final AtomicLong setsIssued = new AtomicLong();
+    private final AtomicLong setsElided = new AtomicLong();
+    private final EzPostgresMetrics metrics = EzPostgresMetrics.getInstance();
+
+    /** Recently serialized tokens, replaced round-robin */
+    private final SerializedToken[] serializedTokens = new SerializedToken[SERIALIZED_TOKEN_CACHE_SIZE];
+    private int nextSerializedToken;
+
+    /** The token the session currently carries, or null if unknown */
+    private SerializedToken appliedToken;
+
+    /** The token being piggybacked onto a statement that hasn't completed yet */
+    private SerializedToken pendingToken;
+
+    /** Whether the applied token was set for the current transaction only */
+    private boolean appliedLocally;
+
+    /** Whether the current transaction carries the token provider's token */
+    private boolean transactionTokenApplied;
+
+    /** Prepared property-setting statement, or null if not prepared yet */
+    private PreparedStatement setConfigStatement;
+
+    /** Prepared token-registering statement, or null if not prepared yet */
+    private PreparedStatement registerStatement;
+
+    /** Handles registered in the backend */
+    private final Set<String> registeredHandles = new HashSet<String>();
+
+    /**
+     * Create a property setter for a connection.
+     *
+     * @param connection the real (undecorated) connection
+     * @param properties JDBC connection properties
+     */
+    public TokenPropertySetter(Connection connection, Properties properties) {
+        this.connection = connection;
+        this.piggybackEnabled = Boolean.parseBoolean(
+                properties.getProperty(EzPostgresDriver.EZBAKE_TOKEN_PIGGYBACK_PROPERTY, "false"));
+        this.tokenHandlesEnabled = Boolean.parseBoolean(
+                properties.getProperty(EzPostgresDriver.EZBAKE_TOKEN_HANDLES_PROPERTY, "false"));
+        this.transactionScoped = Boolean.parseBoolean(
+                properties.getProperty(EzPostgresDriver.EZBAKE_TOKEN_TRANSACTION_SCOPED_PROPERTY, "false"));
+    }
+
+    /**
+     * Set the token as a database property, unless the session already carries an equal token.
+     *
+     * @param token token to apply
+     * @throws SQLException if the property-setting statement could not be executed
+     */
+    public synchronized void apply(EzSecurityToken token) throws SQLException {
+        if (appliedToken != null && appliedToken.matches(token)) {
+            elide();
+            return;
+        }
+
+        set(serialize(token), false);
+    }
+
+    /**
+     * Returns true, counting an elided set, if the token provider's token has already been applied to the current
+     * transaction. Callers in transaction-scoped mode use this to avoid asking the token provider for a token at all.
+     *
+     * @return true if the current transaction already carries its token
+     */
+    public synchronized boolean elideInTransaction() {
+        if (transactionTokenApplied) {
+            elide();
+        }
+
+        return transactionTokenApplied;
+    }
+
+    /**
+     * Set the token as a database property for the current transaction only, unless the session already carries an
+     * equal token. If the token came from the token provider, it is then considered applied until
+     * {@link #endTransaction()}.
+     *
+     * @param token token to apply
+     * @param provided true if the token came from the token provider rather than being given explicitly
+     * @throws SQLException if the property-setting statement could not be executed
+     */
+    public synchronized void applyToTransaction(EzSecurityToken token, boolean provided) throws SQLException {
+        if (appliedToken != null && appliedToken.matches(token)) {
+            elide();
+        } else {
+            set(serialize(token), true);
+        }
+
+        transactionTokenApplied = provided;
+    }
+
+    /**
+     * Note that the current transaction ended, taking any transaction-local token with it.
+     */
+    public synchronized void endTransaction() {
+        transactionTokenApplied = false;
+        if (appliedLocally) {
+            appliedToken = null;
+            appliedLocally = false;
+        }
+    }
+
+    /**
+     * Count a set that was skipped because the session already carries the token.
+     */
+    private void elide() {
+        setsElided.incrementAndGet();
+        metrics.recordTokenSetElided();
+
+        EzPostgresTracer tracer = EzPostgresTracer.getInstance();
+        if (tracer.isSampled(EzPostgresTracer.Operation.TOKEN_SET)) {
+            EzPostgresTracer.Span span = tracer.startSpan(EzPostgresTracer.Operation.TOKEN_SET);
+            span.setAttribute(EzPostgresTracer.ELIDED_ATTRIBUTE, true);
+            EzPostgresTracer.setTokenAttributes(span, appliedToken != null ? appliedToken.token : null);
+            span.end();
+        }
+    }
+
+    /**
+     * Send the property-setting statement.
+     *
+     * @param serializedToken token to set
+     * @param local true to set the token for the current transaction only
+     * @throws SQLException if the property-setting statement could not be executed
+     */
+    private void set(SerializedToken serializedToken, boolean local) throws SQLException {
+        EzPostgresTracer tracer = EzPostgresTracer.getInstance();
+        if (!tracer.isSampled(EzPostgresTracer.Operation.TOKEN_SET)) {
+            send(serializedToken, local);
+            return;
+        }
+
+        EzPostgresTracer.Span span = tracer.startSpan(EzPostgresTracer.Operation.TOKEN_SET);
+        try {
+            span.setAttribute(EzPostgresTracer.ELIDED_ATTRIBUTE, false);
+            EzPostgresTracer.setTokenAttributes(span, serializedToken.token);
+            span.setAttribute(EzPostgresTracer.BYTES_ATTRIBUTE, send(serializedToken, local));
+        } catch (SQLException | RuntimeException e) {
+            span.recordError(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Send the property-setting statement, without tracing it.
+     *
+     * @param serializedToken token to set
+     * @param local true to set the token for the current transaction only
+     * @return number of characters of token or token handle sent
+     * @throws SQLException if the property-setting statement could not be executed
+     */
+    private int send(SerializedToken serializedToken, boolean local) throws SQLException {
+        // Forget the old token first in case the set fails part way through
+        appliedToken = null;
+
+        long start = System.nanoTime();
+        int sent;
+
+        if (!tokenHandlesEnabled) {
+            PreparedStatement propertyStatement = getSetConfigStatement();
+            propertyStatement.setString(1, serializedToken.base64);
+            propertyStatement.setBoolean(2, local);
+            propertyStatement.execute();
+            sent = serializedToken.base64.length();
+        } else if (isRegistered(serializedToken)) {
+            PreparedStatement propertyStatement = getSetConfigStatement();
+            propertyStatement.setString(1, serializedToken.handle);
+            propertyStatement.setBoolean(2, local);
+            propertyStatement.execute();
+            sent = serializedToken.handle.length();
+        } else {
+            register(serializedToken, local);
+            sent = serializedToken.base64.length();
+        }
+
+        metrics.recordTokenSet(start);
+
+        appliedToken = serializedToken;
+        appliedLocally = local;
+        setsIssued.incrementAndGet();
+
+        return sent;
+    }
+
+    /**
+     * @param token a token
+     * @return true if the session is known to carry an equal token
+     */
+    public synchronized boolean carries(EzSecurityToken token) {
+        return appliedToken != null && appliedToken.matches(token);
+    }
+
+    /**
+     * Returns the token the session is known to carry. The token is shared with this setter and must not be modified.
+     *
+     * @return the applied token, or null if unknown
+     */
+    public synchronized EzSecurityToken getAppliedToken() {
+        return appliedToken != null ? appliedToken.token : null;
+    }
+
+    /**
+     * Start sending the token in the same simple query as a statement. Returns the property-setting command that the
+     * caller must send immediately ahead of its SQL, or null if the session already carries an equal token. Unless
+     * null is returned, the caller must then call {@link #completePiggyback(boolean)} once the query has run.
+     *
+     * @param token token to apply
+     * @return property-setting command, or null if nothing needs to be sent
+     * @throws SQLException if the token could not be serialized
+     */
+    public synchronized String beginPiggyback(EzSecurityToken token) throws SQLException {
+        if (appliedToken != null && appliedToken.matches(token)) {
+            setsElided.incrementAndGet();
+            metrics.recordTokenSetElided();
+            return null;
+        }
+
+        SerializedToken serializedToken = serialize(token);
+        if (tokenHandlesEnabled && !isRegistered(serializedToken)) {
+            // Registering has to be its own statement so we know for sure whether the backend has the handle
+            apply(token);
+            return null;
+        }
+
+        pendingToken = serializedToken;
+        appliedToken = null;
+        appliedLocally = false;
+
+        return tokenHandlesEnabled ? pendingToken.handleSetCommand : pendingToken.setCommand;
+    }
+
+    /**
+     * Finish sending the token in the same query as a statement. A failed query is rolled back as a whole, including
+     * the property-setting command, so the session is then assumed to carry no known token.
+     *
+     * @param success true if the query ran without error
+     */
+    public synchronized void completePiggyback(boolean success) {
+        if (success && pendingToken != null) {
+            appliedToken = pendingToken;
+            setsIssued.incrementAndGet();
+            metrics.recordTokenSetPiggybacked();
+        }
+
+        pendingToken = null;
+    }
+
+    /**
+     * Forget the token the session carries, so the next call to {@link #apply(EzSecurityToken)} always sets it.
+     */
+    public synchronized void invalidate() {
+        appliedToken = null;
+        appliedLocally = false;
+        pendingToken = null;
+        transactionTokenApplied = false;
+    }
+
+    /**
+     * Forget the token the session carries if executing the SQL may have reverted it, and re-prepare the
+     * property-setting statement if the SQL may have deallocated it. SQL that commits is treated as the end of the
+     * transaction instead.
+     *
+     * @param sql SQL that was just executed
+     * @throws SQLException if the old property-setting statement could not be closed
+     */
+    public synchronized void invalidate(String sql) throws SQLException {
+        if (!invalidatesToken(sql)) {
+            return;
+        }
+
+        if (TRANSACTION_ENDING_SQL.matcher(sql).find()) {
+            endTransaction();
+            return;
+        }
+
+        invalidate();
+        if (DEALLOCATING_SQL.matcher(sql).find()) {
+            closeStatements();
+        }
+    }
+
+    /**
+     * Forget the token and release the prepared property-setting statement. Called when the connection is closed.
+     *
+     * @throws SQLException if the property-setting statement could not be closed
+     */
+    public synchronized void close() throws SQLException {
+        invalidate();
+        closeStatements();
+    }
+
+    /**
+     * @return true if the token should be set once per transaction when not in auto-commit mode
+     */
+    public boolean isTransactionScoped() {
+        return transactionScoped;
+    }
+
+    /**
+     * @return true if simple-query statements should send the token in the same query as their own SQL
+     */
+    public boolean isPiggybackEnabled() {
+        return piggybackEnabled;
+    }
+
+    /**
+     * @return number of property-setting statements sent to the database
+     */
+    public long getSetsIssued() {
+        return setsIssued.get();
+    }
+
+    /**
+     * @return number of property-setting statements skipped because the session already carried the token
+     */
+    public long getSetsElided() {
+        return setsElided.get();
+    }
+
+    /**
+     * Returns the prepared property-setting statement, preparing it on first use.
+     *
+     * @return property-setting statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    private PreparedStatement getSetConfigStatement() throws SQLException {
+        if (setConfigStatement == null) {
+            setConfigStatement = prepare(SET_CONFIG_SQL);
+        }
+
+        return setConfigStatement;
+    }
+
+    /**
+     * Prepare a statement, marked to use a named server-side statement straight away so that the database parses and
+     * plans it only once per connection.
+     *
+     * @param sql SQL to prepare
+     * @return prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        if (statement.isWrapperFor(PGStatement.class)) {
+            statement.unwrap(PGStatement.class).setPrepareThreshold(1);
+        }
+
+        return statement;
+    }
+
+    private void closeStatements() throws SQLException {
+        PreparedStatement setConfig = setConfigStatement;
+        PreparedStatement register = registerStatement;
+        setConfigStatement = null;
+        registerStatement = null;
+
+        try {
+            if (setConfig != null) {
+                setConfig.close();
+            }
+        } finally {
+            if (register != null) {
+                register.close();
+            }
+        }
+    }
+
+    private boolean isRegistered(SerializedToken serializedToken) {
+        return serializedToken.handle != null && registeredHandles.contains(serializedToken.handle);
+    }
+
+    /**
+     * Register a token in the backend and set the property to its handle. Once the backend holds the maximum number of
+     * handles, it is told to forget all of them first.
+     *
+     * @param serializedToken token to register
+     * @param local true to set the token for the current transaction only
+     * @throws SQLException if the token could not be registered
+     */
+    private void register(SerializedToken serializedToken, boolean local) throws SQLException {
+        if (registerStatement == null) {
+            registerStatement = prepare(REGISTER_SQL);
+        }
+
+        boolean reset = registeredHandles.size() >= MAX_REGISTERED_TOKENS;
+        if (reset) {
+            // The backend clears its registry before checking the token, so forget the handles even if this fails
+            registeredHandles.clear();
+            appliedToken = null;
+        }
+
+        registerStatement.setString(1, serializedToken.base64);
+        registerStatement.setBoolean(2, reset);
+        registerStatement.setBoolean(3, local);
+
+        ResultSet resultSet = registerStatement.executeQuery();
+        try {
+            if (!resultSet.next()) {
+                throw new SQLException("Registering the security token returned no handle");
+            }
+            serializedToken.setHandle(resultSet.getString(1));
+        } finally {
+            resultSet.close();
+        }
+
+        registeredHandles.add(serializedToken.handle);
+    }
+
+    /**
+     * Serialize a token, reusing the serialized form of a recently serialized equal token.
+     *
+     * @param token token to serialize
+     * @return serialized token
+     * @throws SQLException if the token could not be serialized
+     */
+    private SerializedToken serialize(EzSecurityToken token) throws SQLException {
+        for (SerializedToken serializedToken : serializedTokens) {
+            if (serializedToken != null && serializedToken.matches(token)) {
+                return serializedToken;
+            }
+        }
+
+        long start = System.nanoTime();
+        SerializedToken serializedToken = new SerializedToken(token);
+        metrics.recordTokenSerialize(start);
+        serializedTokens[nextSerializedToken] = serializedToken;
+        nextSerializedToken = (nextSerializedToken + 1) % serializedTokens.length;
+
+        return serializedToken;
+    }
+
+    /**
+     * Returns true if executing the SQL might revert or overwrite the token property, for example
+     * <code>RESET ALL</code>, <code>DISCARD ALL</code>, <code>ROLLBACK</code> or, for a transaction-local token,
+     * <code>COMMIT</code>.
+     *
+     * @param sql SQL about to be executed
+     * @return true if the applied token should be forgotten after executing the SQL
+     */
+    public static boolean invalidatesToken(String sql) {
+        return sql != null && (INVALIDATING_SQL.matcher(sql).find() || TRANSACTION_ENDING_SQL.matcher(sql).find());
+    }
+
+    /**
+     * A private copy of a token along with its base64 serialization, the command that sets it and, once registered,
+     * its handle.
+     */
+    private static class SerializedToken {
+        private final EzSecurityToken token;
+        private final String base64;
+        private final String setCommand;
+        private String handle;
+        private String handleSetCommand;
+
+        SerializedToken(EzSecurityToken token) throws SQLException {
+            this.token = new EzSecurityToken(token);
+
+            try {
+                this.base64 = ThriftUtils.serializeToBase64(token);
+            } catch (TException e) {
+                throw new SQLException(e);
+            }
+
+            this.setCommand = String.format(
+                    "set %s = '%s';", StatementDecorator.SECURITY_TOKEN_PROPERTY_NAME, base64);
+        }
+
+        /**
+         * @param other a token
+         * @return true if the other token is equal to the one that was serialized
+         */
+        boolean matches(EzSecurityToken other) {
+            return token.equals(other);
+        }
+
+        /**
+         * @param handle handle the backend registered the token under
+         */
+        void setHandle(String handle) {
+            this.handle = handle;
+            this.handleSetCommand = String.format(
+                    "set %s = '%s';", StatementDecorator.SECURITY_TOKEN_PROPERTY_NAME, handle);
+        }
+    }
+}
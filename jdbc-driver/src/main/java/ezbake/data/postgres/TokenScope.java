@@ -0,0 +1,52 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+
+/**
+ * A token binding created by {@link EzPostgresTokens#bind(EzSecurityToken)}. Closing it restores the binding the
+ * thread had before. It must be closed on the thread that created it.
+ */
+public final class TokenScope implements AutoCloseable {
+    private final Thread thread = Thread.currentThread();
+    private final EzSecurityToken token;
+    private final EzSecurityToken previous;
+    private boolean closed;
+
+    TokenScope(EzSecurityToken token, EzSecurityToken previous) {
+        this.token = token;
+        this.previous = previous;
+    }
+
+    /**
+     * @return the bound token, or null if the scope leaves the thread unbound
+     */
+    public EzSecurityToken getToken() {
+        return token;
+    }
+
+    @Override
+    public void close() {
+        if (Thread.currentThread() != thread) {
+            throw new IllegalStateException("A token scope must be closed by the thread that bound it");
+        }
+
+        if (!closed) {
+            closed = true;
+            EzPostgresTokens.set(previous);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ApplicationTokenProviderTest {
+
+    private FakeSecurityClient securityClient;
+
+    @Before
+    public void setUp() {
+        securityClient = new FakeSecurityClient();
+    }
+
+    @Test
+    public void testTokenCachedPerSecurityClient() {
+        EzPostgresMetrics metrics = EzPostgresMetrics.getInstance();
+        long hits = metrics.getTokenCacheHits();
+
+        EzSecurityToken token = new ApplicationTokenProvider(securityClient.getClient()).get();
+        assertNotNull(token);
+        assertSame(token, new ApplicationTokenProvider(securityClient.getClient()).get());
+
+        assertEquals(1, securityClient.getFetches());
+        assertTrue(metrics.getTokenCacheHits() > hits);
+        assertTrue(metrics.getHistogram(EzPostgresMetrics.Phase.TOKEN_FETCH).getCount() > 0);
+    }
+
+    @Test
+    public void testTokenRefreshedInBackground() throws InterruptedException {
+        // Refreshed half way through its lifetime, since the lifetime is shorter than twice the refresh margin
+        securityClient.setLifetimeMillis(1000);
+        ApplicationTokenProvider provider = new ApplicationTokenProvider(securityClient.getClient());
+        EzSecurityToken token = provider.get();
+        provider.get();
+
+        waitFor(2);
+        assertNotSame(token, provider.get());
+        assertEquals(2, securityClient.getFetches());
+    }
+
+    @Test
+    public void testIdleCacheReleased() throws InterruptedException {
+        securityClient.setLifetimeMillis(400);
+        ApplicationTokenProvider provider = new ApplicationTokenProvider(securityClient.getClient());
+        provider.get();
+        assertTrue(ApplicationTokenProvider.isCached(securityClient.getClient()));
+
+        // Unused since its fetch, so the cache is released rather than refreshed
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ApplicationTokenProvider.isCached(securityClient.getClient()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(ApplicationTokenProvider.isCached(securityClient.getClient()));
+        assertEquals(1, securityClient.getFetches());
+
+        // Once expired, the token is fetched in the foreground and the cache shared again
+        Thread.sleep(400);
+        assertNotNull(provider.get());
+        assertEquals(2, securityClient.getFetches());
+        assertTrue(ApplicationTokenProvider.isCached(securityClient.getClient()));
+    }
+
+    @Test
+    public void testFailureNotCached() {
+        ApplicationTokenProvider provider = new ApplicationTokenProvider(securityClient.getClient());
+        securityClient.setFailing(true);
+        assertNull(provider.get());
+
+        securityClient.setFailing(false);
+        assertNotNull(provider.get());
+        assertEquals(2, securityClient.getFetches());
+    }
+
+    private void waitFor(int fetches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (securityClient.getFetches() < fetches && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.EzSecurityTokenException;
+import ezbake.security.common.core.EzSecurityClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.inject.Provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ExplicitTokenProviderTest {
+
+    private FakeSecurityClient securityClient;
+
+    @Before
+    public void setUp() {
+        securityClient = new FakeSecurityClient();
+    }
+
+    @Test
+    public void testValidatedOnce() throws EzSecurityTokenException {
+        EzSecurityToken token = securityClient.getClient().fetchAppToken();
+        ExplicitTokenProvider provider = new ExplicitTokenProvider(client(), token);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(token, provider.get());
+        }
+        assertEquals(1, securityClient.getValidations());
+    }
+
+    @Test
+    public void testRevalidatedNearExpiry() throws EzSecurityTokenException, InterruptedException {
+        // Revalidated half way through its lifetime, since the lifetime is shorter than twice the margin
+        securityClient.setLifetimeMillis(400);
+        EzSecurityToken token = securityClient.getClient().fetchAppToken();
+        ExplicitTokenProvider provider = new ExplicitTokenProvider(client(), token);
+
+        provider.get();
+        provider.get();
+        assertEquals(1, securityClient.getValidations());
+
+        Thread.sleep(250);
+        provider.get();
+        provider.get();
+        assertEquals(2, securityClient.getValidations());
+    }
+
+    @Test
+    public void testFailureRetriedAfterInterval() throws EzSecurityTokenException, InterruptedException {
+        EzSecurityToken token = securityClient.getClient().fetchAppToken();
+        ExplicitTokenProvider provider = new ExplicitTokenProvider(client(), token);
+
+        securityClient.setFailing(true);
+        long failed = System.currentTimeMillis();
+        assertSame(token, provider.get());
+        assertSame(token, provider.get());
+        assertEquals(1, securityClient.getValidations());
+
+        securityClient.setFailing(false);
+        while (System.currentTimeMillis() - failed < ExplicitTokenProvider.REVALIDATE_INTERVAL_MILLIS - 500) {
+            provider.get();
+            Thread.sleep(100);
+        }
+        assertEquals(1, securityClient.getValidations());
+
+        Thread.sleep(1000);
+        provider.get();
+        provider.get();
+        assertEquals(2, securityClient.getValidations());
+    }
+
+    private Provider<EzSecurityClient> client() {
+        return new Provider<EzSecurityClient>() {
+            @Override
+            public EzSecurityClient get() {
+                return securityClient.getClient();
+            }
+        };
+    }
+}
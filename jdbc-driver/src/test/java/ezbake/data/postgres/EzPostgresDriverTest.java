@@ -0,0 +1,63 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import org.junit.Test;
+
+import javax.inject.Provider;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EzPostgresDriverTest {
+
+    @Test
+    public void testScopedTokenProviderCreatesNoSecurityClient() throws SQLException {
+        // Creating this security client would fail, so the provider must never ask for it
+        Properties properties = new Properties();
+        properties.setProperty(EzPostgresDriver.EZBAKE_TOKEN_PROVIDER_PROPERTY, ScopedTokenProvider.class.getName());
+        properties.setProperty(EzPostgresDriver.EZBAKE_SECURITY_CLIENT_PROPERTY, "ezbake.data.postgres.NoSuchClient");
+
+        Provider<EzSecurityToken> tokenProvider = new EzPostgresDriver().createTokenProvider(properties);
+        assertTrue(tokenProvider instanceof ScopedTokenProvider);
+        assertNull(tokenProvider.get());
+    }
+
+    @Test
+    public void testURLsWithCredentialsNotRemembered() {
+        EzPostgresDriver driver = new EzPostgresDriver();
+        String url = "jdbc:ezbake:postgresql://localhost/remembered?ezbakeTokenPiggyback=true";
+        String tokenURL = "jdbc:ezbake:postgresql://localhost/token?ezbakeToken=c2VjcmV0";
+        String passwordURL = "jdbc:ezbake:postgresql://localhost/password?user=alice&PASSWORD=secret";
+
+        assertEquals("true", driver.parseURL(url).queryProperties.getProperty(
+                EzPostgresDriver.EZBAKE_TOKEN_PIGGYBACK_PROPERTY));
+        assertTrue(EzPostgresDriver.isParsed(url));
+
+        // Still parsed, but not kept once the connection is made
+        assertEquals("c2VjcmV0", driver.parseURL(tokenURL).queryProperties.getProperty(
+                EzPostgresDriver.EZBAKE_TOKEN_PROPERTY));
+        assertFalse(EzPostgresDriver.isParsed(tokenURL));
+        assertEquals("jdbc:postgresql://localhost/password?user=alice&PASSWORD=secret",
+                driver.parseURL(passwordURL).realURL);
+        assertFalse(EzPostgresDriver.isParsed(passwordURL));
+    }
+}
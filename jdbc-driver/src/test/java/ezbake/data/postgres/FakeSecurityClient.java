@@ -0,0 +1,154 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityPrincipal;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.EzSecurityTokenException;
+import ezbake.base.thrift.TokenType;
+import ezbake.base.thrift.ValidityCaveats;
+import ezbake.security.common.core.EzSecurityClient;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A security client for testing token providers without a security service. It mints tokens with a configurable
+ * lifetime, issued to the principal of the current Spring Security context for user tokens, counts its fetches and
+ * validations, and can be made to fail or to hold fetches until released.
+ */
+class FakeSecurityClient implements InvocationHandler {
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger validations = new AtomicInteger();
+    private final EzSecurityClient client = (EzSecurityClient) Proxy.newProxyInstance(
+            EzSecurityClient.class.getClassLoader(), new Class<?>[] {EzSecurityClient.class}, this);
+
+    private volatile long lifetimeMillis = TimeUnit.HOURS.toMillis(1);
+    private volatile boolean failing;
+    private volatile CountDownLatch gate;
+
+    /**
+     * @return the security client
+     */
+    EzSecurityClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return number of tokens fetched, including failed fetches
+     */
+    int getFetches() {
+        return fetches.get();
+    }
+
+    /**
+     * @return number of tokens validated, including failed validations
+     */
+    int getValidations() {
+        return validations.get();
+    }
+
+    /**
+     * @param lifetimeMillis lifetime of tokens fetched from now on
+     */
+    void setLifetimeMillis(long lifetimeMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * @param failing true to fail every fetch and validation
+     */
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * @param gate latch that fetches wait for, or null not to wait
+     */
+    void setGate(CountDownLatch gate) {
+        this.gate = gate;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("fetchAppToken")) {
+            return fetch(TokenType.APP, "app");
+        } else if (name.equals("fetchTokenForProxiedUser")) {
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            return fetch(TokenType.USER, authentication != null ? authentication.getName() : "anonymous");
+        } else if (name.equals("validateReceivedToken")) {
+            validate((EzSecurityToken) args[0]);
+            return null;
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("toString")) {
+            return "fake security client";
+        }
+
+        throw new UnsupportedOperationException(name);
+    }
+
+    private void validate(EzSecurityToken token) throws EzSecurityTokenException {
+        validations.incrementAndGet();
+
+        if (failing) {
+            throw new EzSecurityTokenException("Fake failure");
+        }
+        if (token.getValidity().getNotAfter() < System.currentTimeMillis()) {
+            throw new EzSecurityTokenException("Token has expired");
+        }
+    }
+
+        private EzSecurityToken fetch(TokenType type, String principal) throws EzSecurityTokenException {
+        fetches.incrementAndGet();
+
+        CountDownLatch latch = gate;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EzSecurityTokenException("Interrupted");
+            }
+        }
+
+        if (failing) {
+            throw new EzSecurityTokenException("Fake failure");
+        }
+
+        long now = System.currentTimeMillis();
+        ValidityCaveats validity = new ValidityCaveats()
+                .setIssuedTo("app")
+                .setIssuedTime(now)
+                .setNotBefore(now)
+                .setNotAfter(now + lifetimeMillis);
+
+        return new EzSecurityToken()
+                .setType(type)
+                .setValidity(validity)
+                .setTokenPrincipal(new EzSecurityPrincipal().setPrincipal(principal).setValidity(validity));
+    }
+}
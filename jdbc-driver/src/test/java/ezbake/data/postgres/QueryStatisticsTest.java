@@ -0,0 +1,83 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.postgres;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryStatisticsTest {
+
+    private QueryStatistics statistics;
+
+    @Before
+    public void setUp() {
+        statistics = QueryStatistics.getInstance();
+        statistics.reset();
+        statistics.setMaxFingerprints(10);
+    }
+
+    @After
+    public void tearDown() {
+        statistics.reset();
+        statistics.setMaxFingerprints(QueryStatistics.DEFAULT_MAX_FINGERPRINTS);
+    }
+
+    @Test
+    public void testCheapestFingerprintsEvicted() {
+        for (int i = 1; i <= 10; i++) {
+            statistics.record("select " + i, i * 1000000L, 0, -1);
+        }
+
+        statistics.record("select new", 100000000L, 0, -1);
+        Set<String> fingerprints = fingerprints();
+        assertFalse(fingerprints.contains("select 1"));
+        assertTrue(fingerprints.contains("select 2"));
+        assertTrue(fingerprints.contains("select new"));
+    }
+
+    @Test
+    public void testRecentFingerprintsProtected() {
+        for (int i = 1; i <= 10; i++) {
+            statistics.record("select " + i, i * 1000000L, 0, -1);
+        }
+
+        // Cheaper than everything else, but first seen since the last eviction
+        statistics.record("select recent", 1000L, 0, -1);
+        statistics.record("select next", 1000L, 0, -1);
+
+        Set<String> fingerprints = fingerprints();
+        assertTrue(fingerprints.contains("select recent"));
+        assertFalse(fingerprints.contains("select 2"));
+        assertEquals(10, fingerprints.size());
+    }
+
+    private Set<String> fingerprints() {
+        Set<String> fingerprints = new HashSet<String>();
+        for (QueryStatistics.FingerprintStatistics entry : statistics.getStatements()) {
+            fingerprints.add(entry.getFingerprint());
+        }
+
+        return fingerprints;
+    }
+}
@@ -0,0 +1,91 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.postgres;
+
+import ezbake.configuration.EzConfigurationLoaderException;
+import ezbake.security.client.EzbakeSecurityClient;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SecurityClientsTest {
+
+    @Test
+    public void testClientKeyedOnSecurityProperties() throws EzConfigurationLoaderException {
+        Properties properties = properties("keyedApp");
+        Properties otherConnection = properties("keyedApp");
+        otherConnection.setProperty("user", "other");
+        otherConnection.setProperty("postgres.host", "elsewhere");
+        otherConnection.setProperty(EzPostgresDriver.EZBAKE_TOKEN_PIGGYBACK_PROPERTY, "true");
+
+        assertSame(SecurityClients.get(properties), SecurityClients.get(otherConnection));
+        assertNotSame(SecurityClients.get(properties), SecurityClients.get(properties("otherApp")));
+    }
+
+    @Test
+    public void testClientOfOtherTypeNotInitialized() throws EzConfigurationLoaderException {
+        Properties properties = properties("notAClient");
+        properties.setProperty(EzPostgresDriver.EZBAKE_SECURITY_CLIENT_PROPERTY, NotAClient.class.getName());
+
+        try {
+            SecurityClients.get(properties);
+            fail("Created a security client from a class that isn't one");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof ClassNotFoundException);
+        }
+        assertFalse(notAClientInitialized);
+    }
+
+    @Test
+    public void testClientNotAcceptedFromURL() {
+        String url = "jdbc:ezbake:postgresql://localhost/db?ezbakeSecurityClient=" + MockClient.class.getName();
+        assertFalse(new EzPostgresDriver().getURLQueryParameterProperties(url)
+                .containsKey(EzPostgresDriver.EZBAKE_SECURITY_CLIENT_PROPERTY));
+    }
+
+    private static Properties properties(String securityId) {
+        Properties properties = new Properties();
+        properties.setProperty(EzPostgresDriver.EZBAKE_SECURITY_CLIENT_PROPERTY, MockClient.class.getName());
+        properties.setProperty("ezbake.security.client.use.mock", "true");
+        properties.setProperty("ezbake.security.client.mode", "MOCK");
+        properties.setProperty("ezbake.security.app.id", securityId);
+        properties.setProperty("user", "testapp");
+        return properties;
+    }
+
+    static volatile boolean notAClientInitialized;
+
+    public static class MockClient extends EzbakeSecurityClient {
+        public MockClient(Properties properties) {
+            super(properties);
+        }
+    }
+
+    public static class NotAClient {
+        static {
+            notAClientInitialized = true;
+        }
+
+        public NotAClient(Properties properties) {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.data.postgres;
+
+import ezbake.base.thrift.EzSecurityToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SpringSecurityContextTokenProviderTest {
+
+    private FakeSecurityClient securityClient;
+
+    @Before
+    public void setUp() {
+        securityClient = new FakeSecurityClient();
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testTokenCachedPerPrincipal() {
+        SpringSecurityContextTokenProvider provider =
+                new SpringSecurityContextTokenProvider(securityClient.getClient());
+
+        EzSecurityToken alice = get(provider, "alice");
+        EzSecurityToken bob = get(provider, "bob");
+        assertEquals("alice", alice.getTokenPrincipal().getPrincipal());
+        assertEquals("bob", bob.getTokenPrincipal().getPrincipal());
+        assertNotSame(alice, bob);
+
+        // Shared by every provider built on the same security client
+        assertSame(alice, get(new SpringSecurityContextTokenProvider(securityClient.getClient()), "alice"));
+        assertSame(bob, get(provider, "bob"));
+        assertEquals(2, securityClient.getFetches());
+    }
+
+    @Test
+    public void testConcurrentMissesFetchOnce() throws Exception {
+        final SpringSecurityContextTokenProvider provider =
+                new SpringSecurityContextTokenProvider(securityClient.getClient());
+        CountDownLatch gate = new CountDownLatch(1);
+        securityClient.setGate(gate);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<EzSecurityToken>> futures = new ArrayList<Future<EzSecurityToken>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<EzSecurityToken>() {
+                    @Override
+                    public EzSecurityToken call() {
+                        return get(provider, "alice");
+                    }
+                }));
+            }
+
+            // Let every thread reach the cache before the fetch completes
+            Thread.sleep(200);
+            gate.countDown();
+
+            EzSecurityToken token = futures.get(0).get();
+            assertNotNull(token);
+            for (Future<EzSecurityToken> future : futures) {
+                assertSame(token, future.get());
+            }
+            assertEquals(1, securityClient.getFetches());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureNotCached() {
+        SpringSecurityContextTokenProvider provider =
+                new SpringSecurityContextTokenProvider(securityClient.getClient());
+        securityClient.setFailing(true);
+        assertNull(get(provider, "alice"));
+
+        securityClient.setFailing(false);
+        assertNotNull(get(provider, "alice"));
+        assertNotNull(get(provider, "alice"));
+        assertEquals(2, securityClient.getFetches());
+    }
+
+    @Test
+    public void testReferencedTokensSurviveEviction() {
+        SpringSecurityContextTokenProvider provider =
+                new SpringSecurityContextTokenProvider(securityClient.getClient());
+        int max = SpringSecurityContextTokenProvider.MAX_CACHED_PRINCIPALS;
+        for (int i = 0; i < max; i++) {
+            get(provider, "user" + i);
+        }
+
+        // The oldest token was hit since it was cached, so the next oldest is evicted instead
+        EzSecurityToken oldest = get(provider, "user0");
+        get(provider, "user" + max);
+        assertEquals(max, SpringSecurityContextTokenProvider.cachedPrincipals(securityClient.getClient()));
+
+        int fetches = securityClient.getFetches();
+        assertSame(oldest, get(provider, "user0"));
+        assertEquals(fetches, securityClient.getFetches());
+        get(provider, "user1");
+        assertEquals(fetches + 1, securityClient.getFetches());
+    }
+
+    private static EzSecurityToken get(SpringSecurityContextTokenProvider provider, String principal) {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(principal, ""));
+        return provider.get();
+    }
+}
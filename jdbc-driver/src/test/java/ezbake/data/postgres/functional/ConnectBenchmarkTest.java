@@ -0,0 +1,84 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.functional;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import ezbake.configuration.ClasspathConfigurationLoader;
+import ezbake.configuration.EzConfiguration;
+import ezbake.configuration.EzConfigurationLoaderException;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.runners.MethodSorters;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * Measures the latency of opening a connection and executing its first statement. The cold connect runs first, in a
+ * JVM where the driver hasn't connected yet, and so includes loading the driver, creating the security client and
+ * resolving the token provider. Warm connects reuse all of that. The pom runs this class in a JVM of its own, since
+ * the connect would not be cold after other tests.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ConnectBenchmarkTest {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private Properties properties;
+    private String url;
+
+    @Before
+    public void setUp() throws EzConfigurationLoaderException {
+        properties = new EzConfiguration(new ClasspathConfigurationLoader()).getProperties();
+        properties.setProperty("user", properties.getProperty("postgres.username"));
+        properties.setProperty("password", properties.getProperty("postgres.password"));
+
+        url = String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                properties.getProperty("postgres.host"),
+                properties.getProperty("postgres.port"),
+                properties.getProperty("postgres.db"));
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 1, warmupRounds = 0)
+    public void testColdConnect() throws SQLException {
+        connect();
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 100, warmupRounds = 10)
+    public void testWarmConnect() throws SQLException {
+        connect();
+    }
+
+    private void connect() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, properties);
+        try {
+            Statement st = connection.createStatement();
+            st.execute("select 1;");
+            st.close();
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.functional;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.configuration.ClasspathConfigurationLoader;
+import ezbake.configuration.EzConfiguration;
+import ezbake.configuration.EzConfigurationLoaderException;
+import ezbake.data.postgres.EzPostgresDataSource;
+import ezbake.thrift.ThriftTestUtils;
+import ezbakehelpers.ezconfigurationhelpers.application.EzBakeApplicationConfigurationHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.postgresql.PGConnection;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DataSourceTest {
+
+    private EzPostgresDataSource dataSource;
+    private String securityId;
+
+    @Before
+    public void setUp() throws EzConfigurationLoaderException {
+        Properties properties = new EzConfiguration(new ClasspathConfigurationLoader()).getProperties();
+        securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        properties.setProperty("user", properties.getProperty("postgres.username"));
+        properties.setProperty("password", properties.getProperty("postgres.password"));
+
+        dataSource = new EzPostgresDataSource(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+        dataSource.setMaxPoolSize(1);
+        dataSource.setCheckoutTimeoutMillis(100);
+    }
+
+    @After
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    @Test
+    public void testConnectionReused() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        int pid = getBackendPid(connection);
+        connection.setAutoCommit(false);
+        connection.close();
+        assertTrue(connection.isClosed());
+
+        connection = dataSource.getConnection();
+        try {
+            assertEquals(pid, getBackendPid(connection));
+            assertTrue(connection.getAutoCommit());
+            assertEquals(1, dataSource.getTotalConnections());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testTokenAffinity() throws SQLException {
+        dataSource.setTokenAffinity(true);
+
+        Connection connection = dataSource.getConnection();
+        getBackendPid(connection);
+        connection.close();
+
+        connection = dataSource.getConnection();
+        try {
+            getBackendPid(connection);
+            assertEquals(1, dataSource.getAffinityHits());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testTokenResetForOtherPrincipal() throws SQLException {
+        dataSource.setTokenAffinity(true);
+
+        Connection connection = dataSource.getConnection(token("alice"));
+        int pid = getBackendPid(connection);
+        connection.close();
+
+        // The unwrapped connection doesn't set the token, so it must not see the last principal's
+        connection = dataSource.getConnection(token("bob"));
+        try {
+            Statement st = ((Connection) connection.unwrap(PGConnection.class)).createStatement();
+            try {
+                ResultSet rs = st.executeQuery("show ezbake.token;");
+                assertTrue(rs.next());
+                assertEquals("", rs.getString(1));
+            } finally {
+                st.close();
+            }
+            assertEquals(pid, getBackendPid(connection));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testMaxConnectionsPerPrincipal() throws SQLException {
+        dataSource.setTokenAffinity(true);
+        dataSource.setMaxPoolSize(2);
+        dataSource.setMaxConnectionsPerPrincipal(1);
+
+        Connection connection = dataSource.getConnection(token("alice"));
+        try {
+            try {
+                dataSource.getConnection(token("alice"));
+                fail("Expected the principal's connections to be exhausted");
+            } catch (SQLException e) {
+                assertEquals(1, dataSource.getActiveConnections());
+            }
+
+            // Other principals can still check out the rest of the pool
+            Connection other = dataSource.getConnection(token("bob"));
+            other.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testStatementsClosedOnReturn() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        Statement st = connection.createStatement();
+        ResultSet rs = st.executeQuery("select 1;");
+        connection.close();
+
+        assertTrue(st.isClosed());
+        assertTrue(rs.isClosed());
+
+        // A statement leaked from one checkout must not set its token on the next checkout's session
+        Connection next = dataSource.getConnection();
+        try {
+            st.execute("select 1;");
+            fail("Expected the leaked statement to be closed");
+        } catch (SQLException e) {
+            assertFalse(next.isClosed());
+        } finally {
+            next.close();
+        }
+    }
+
+    @Test
+    public void testCheckoutTimeout() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            dataSource.getConnection();
+            fail("Expected the pool to be exhausted");
+        } catch (SQLException e) {
+            assertFalse(connection.isClosed());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private EzSecurityToken token(String principal) {
+        EzSecurityToken token = ThriftTestUtils.generateTestSecurityToken(
+                securityId, securityId, Arrays.asList("U"));
+        token.getTokenPrincipal().setPrincipal(principal);
+
+        return token;
+    }
+
+    private int getBackendPid(Connection connection) throws SQLException {
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("select pg_backend_pid();");
+            assertTrue(rs.next());
+
+            return rs.getInt(1);
+        } finally {
+            st.close();
+        }
+    }
+}
@@ -15,9 +15,19 @@
 package ezbake.data.postgres.functional;
 
 import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.Visibility;
 import ezbake.configuration.ClasspathConfigurationLoader;
 import ezbake.configuration.EzConfiguration;
 import ezbake.configuration.EzConfigurationLoaderException;
+import ezbake.data.postgres.EzPostgresConnection;
+import ezbake.data.postgres.EzPostgresCopyManager;
+import ezbake.data.postgres.EzPostgresMetrics;
+import ezbake.data.postgres.EzPostgresRowWriter;
+import ezbake.data.postgres.EzPostgresStatement;
+import ezbake.data.postgres.EzPostgresTokens;
+import ezbake.data.postgres.EzPostgresTracer;
+import ezbake.data.postgres.QueryStatistics;
+import ezbake.data.postgres.TokenScope;
 import ezbake.security.client.EzbakeSecurityClient;
 import ezbake.security.common.core.EzSecurityClient;
 import ezbake.thrift.ThriftTestUtils;
@@ -29,18 +39,26 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DriverTest {
 
@@ -126,6 +144,91 @@ public class DriverTest {
         assertCurrentTokenSettingEquals(explicitToken);
     }
 
+    @Test
+    public void testSetScopedToken() throws SQLException, TException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        EzSecurityToken scopedToken = ThriftTestUtils.generateTestSecurityToken(securityId, securityId, Arrays.asList("U"));
+
+        properties.setProperty("ezbakeTokenProvider", "ezbake.data.postgres.ScopedTokenProvider");
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        try (TokenScope scope = EzPostgresTokens.bind(scopedToken)) {
+            assertCurrentTokenSettingEquals(scopedToken);
+        }
+    }
+
+    @Test
+    public void testSetClientInfoToken() throws SQLException, TException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        EzSecurityToken clientInfoToken = ThriftTestUtils.generateTestSecurityToken(securityId, securityId, Arrays.asList("U"));
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        connection.setClientInfo(EzPostgresConnection.CLIENT_INFO_SECURITY_TOKEN,
+                ThriftUtils.serializeToBase64(clientInfoToken));
+        assertCurrentTokenSettingEquals(clientInfoToken);
+
+        connection.setClientInfo(EzPostgresConnection.CLIENT_INFO_SECURITY_TOKEN, "");
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+    }
+
+    @Test
+    public void testSetClientInfoKeepsSetToken() throws SQLException, TException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        EzSecurityToken connectionToken = ThriftTestUtils.generateTestSecurityToken(securityId, securityId, Arrays.asList("U"));
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        EzPostgresConnection ezConnection = connection.unwrap(EzPostgresConnection.class);
+        ezConnection.setSecurityToken(connectionToken);
+
+        // Client info without the token property must not drop a token that wasn't set through client info
+        Properties clientInfo = new Properties();
+        clientInfo.setProperty("ApplicationName", "DriverTest");
+        connection.setClientInfo(clientInfo);
+
+        assertEquals(connectionToken, ezConnection.getSecurityToken());
+        assertCurrentTokenSettingEquals(connectionToken);
+    }
+
+    @Test
+    public void testSetStatementToken() throws SQLException, TException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        EzSecurityToken statementToken = ThriftTestUtils.generateTestSecurityToken(securityId, securityId, Arrays.asList("U"));
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.unwrap(EzPostgresStatement.class).setSecurityToken(statementToken);
+        ResultSet rs = st.executeQuery("select current_setting('ezbake.token');");
+        assertTrue(rs.next());
+        assertEquals(statementToken, ThriftUtils.deserializeFromBase64(EzSecurityToken.class, rs.getString(1)));
+        st.close();
+
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+    }
+
     @Test
     public void testSetContextTokenURL() throws SQLException, TException {
         connection = DriverManager.getConnection(
@@ -167,6 +270,374 @@ public class DriverTest {
         assertCurrentTokenSettingEquals(explicitToken);
     }
 
+    @Test
+    public void testTokenReappliedAfterReset() throws SQLException, TException {
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.execute("select 1;");
+        st.execute("reset all;");
+        st.close();
+
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+    }
+
+    @Test
+    public void testTokenReappliedAfterPreparedReset() throws SQLException, TException {
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        PreparedStatement ps = connection.prepareStatement("reset ezbake.token;");
+        ps.execute();
+        ps.close();
+
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+    }
+
+    @Test
+    public void testTokenReappliedAfterRollback() throws SQLException, TException {
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+        connection.setAutoCommit(false);
+
+        // The token is first set inside the transaction, so rolling back reverts it
+        Statement st = connection.createStatement();
+        st.execute("select 1;");
+        st.close();
+        connection.rollback();
+
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+    }
+
+    @Test
+    public void testTransactionScopedToken() throws SQLException, TException {
+        properties.setProperty("ezbakeTokenTransactionScoped", "true");
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+        connection.setAutoCommit(false);
+
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+        connection.commit();
+
+        // The token was local to the committed transaction, so the next one sets it again
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+        connection.commit();
+    }
+
+    @Test
+    public void testPiggybackedToken() throws SQLException, TException {
+        properties.setProperty("ezbakeTokenPiggyback", "true");
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        assertEquals(0, st.executeUpdate("create temporary table piggyback (x int);"));
+        assertEquals(1, st.executeUpdate("insert into piggyback values (1);"));
+        st.close();
+
+        assertCurrentTokenSettingEquals(securityClient.fetchTokenForProxiedUser());
+    }
+
+    @Test
+    public void testTokenHandle() throws SQLException {
+        properties.setProperty("ezbakeTokenHandles", "true");
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.execute("create temporary table handles (x int, visibility varchar);");
+
+        // U marked row
+        st.execute("insert into handles values (1, E'CwABAAAAAVUA');");
+
+        ResultSet rs = st.executeQuery("select count(*) from handles;");
+        assertTrue(rs.next());
+        assertEquals(1, rs.getInt("count"));
+
+        rs = st.executeQuery("select current_setting('ezbake.token');");
+        assertTrue(rs.next());
+        assertTrue(rs.getString("current_setting").startsWith("handle:"));
+        st.close();
+    }
+
+    @Test
+    public void testMetrics() throws SQLException {
+        EzPostgresMetrics metrics = EzPostgresMetrics.getInstance();
+        long statements = metrics.getStatements();
+        long sets = metrics.getTokenSets();
+        long elided = metrics.getTokenSetsElided();
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.execute("select 1;");
+        st.execute("select 2;");
+        st.close();
+
+        assertEquals(statements + 2, metrics.getStatements());
+        assertEquals(sets + 1, metrics.getTokenSets());
+        assertEquals(elided + 1, metrics.getTokenSetsElided());
+        assertTrue(metrics.getHistogram(EzPostgresMetrics.Phase.TOKEN_PROVIDER).getCount() > 0);
+    }
+
+    @Test
+    public void testEqualTokenSerializedOnce() throws SQLException, TException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        String serializedToken = ThriftUtils.serializeToBase64(
+                ThriftTestUtils.generateTestSecurityToken(securityId, securityId, Arrays.asList("U")));
+        EzSecurityToken otherToken = ThriftTestUtils.generateTestSecurityToken(securityId, securityId, Arrays.asList("U", "S"));
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+        EzPostgresConnection ezConnection = connection.unwrap(EzPostgresConnection.class);
+
+        EzPostgresMetrics metrics = EzPostgresMetrics.getInstance();
+        long serialized = metrics.getHistogram(EzPostgresMetrics.Phase.TOKEN_SERIALIZE).getCount();
+        long sets = metrics.getTokenSets();
+
+        // Each statement gets an equal copy of the token and, after the reset, has to set it again
+        Statement st = connection.createStatement();
+        for (int i = 0; i < 3; i++) {
+            ezConnection.setSecurityToken(ThriftUtils.deserializeFromBase64(EzSecurityToken.class, serializedToken));
+            st.execute("select 1;");
+            st.execute("reset all;");
+        }
+        assertEquals(sets + 3, metrics.getTokenSets());
+        assertEquals(serialized + 1, metrics.getHistogram(EzPostgresMetrics.Phase.TOKEN_SERIALIZE).getCount());
+
+        ezConnection.setSecurityToken(otherToken);
+        st.execute("select 1;");
+        st.close();
+        assertEquals(serialized + 2, metrics.getHistogram(EzPostgresMetrics.Phase.TOKEN_SERIALIZE).getCount());
+    }
+
+    @Test
+    public void testQueryStatistics() throws SQLException {
+        properties.setProperty("ezbakeQueryStatistics", "true");
+        QueryStatistics.getInstance().reset();
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.execute("select 1;");
+        st.execute("SELECT  2;");
+        st.close();
+
+        List<QueryStatistics.FingerprintStatistics> statistics = QueryStatistics.getInstance().getTop(10);
+        assertEquals(1, statistics.size());
+        assertEquals("select ?;", statistics.get(0).getFingerprint());
+        assertEquals(2, statistics.get(0).getCalls());
+    }
+
+    @Test
+    public void testTracing() throws SQLException {
+        final List<String> spans = new ArrayList<String>();
+        EzPostgresTracer.setInstance(new EzPostgresTracer() {
+            @Override
+            public boolean isSampled(Operation operation) {
+                return true;
+            }
+
+            @Override
+            public Span startSpan(final Operation operation) {
+                return new Span() {
+                    @Override
+                    public void setAttribute(String name, String value) {
+                        spans.add(operation.getSpanName() + " " + name + "=" + value);
+                    }
+                };
+            }
+        });
+
+        try {
+            connection = DriverManager.getConnection(
+                    String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                            properties.getProperty("postgres.host"),
+                            properties.getProperty("postgres.port"),
+                            properties.getProperty("postgres.db")),
+                    properties);
+
+            Statement st = connection.createStatement();
+            st.execute("select 1;");
+            st.close();
+        } finally {
+            EzPostgresTracer.setInstance(null);
+        }
+
+        assertTrue(spans.contains("ezpostgres.execute db.statement.fingerprint=select ?;"));
+    }
+
+    @Test
+    public void testCopyIn() throws SQLException, TException, IOException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        EzSecurityToken explicitToken = ThriftTestUtils.generateTestSecurityToken(
+                securityId, securityId, Arrays.asList("U"));
+
+        properties.setProperty("ezbakeTokenProvider", "ezbake.data.postgres.ExplicitTokenProvider");
+        properties.setProperty("ezbakeToken", ThriftUtils.serializeToBase64(explicitToken));
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.execute("create temporary table copy_test (id int, name varchar, visibility varchar);");
+
+        Visibility visibility = new Visibility().setFormalVisibility("U");
+        EzPostgresCopyManager copyManager = connection.unwrap(EzPostgresConnection.class).getCopyAPI();
+        EzPostgresRowWriter writer = copyManager.copyInRows("copy_test", "id", "name");
+        writer.writeRow(visibility, 1, "tab\there");
+        writer.writeRow(visibility, 2, null);
+        assertEquals(2, writer.endCopy());
+
+        String data = "3\tthree\t" + ThriftUtils.serializeToBase64(visibility) + "\n";
+        assertEquals(1, copyManager.copyIn("copy copy_test from stdin", new StringReader(data)));
+
+        ResultSet rs = st.executeQuery("select name from copy_test order by id;");
+        assertTrue(rs.next());
+        assertEquals("tab\there", rs.getString(1));
+        assertTrue(rs.next());
+        assertEquals(null, rs.getString(1));
+        assertTrue(rs.next());
+        assertEquals("three", rs.getString(1));
+        rs.close();
+        st.close();
+
+        assertCurrentTokenSettingEquals(explicitToken);
+    }
+
+    @Test
+    public void testCopyOut() throws SQLException, TException, IOException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        EzSecurityToken explicitToken = ThriftTestUtils.generateTestSecurityToken(
+                securityId, securityId, Arrays.asList("U"));
+
+        properties.setProperty("ezbakeTokenProvider", "ezbake.data.postgres.ExplicitTokenProvider");
+        properties.setProperty("ezbakeToken", ThriftUtils.serializeToBase64(explicitToken));
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.execute("create temporary table copy_out_test (id int, visibility varchar);");
+
+        EzPostgresCopyManager copyManager = connection.unwrap(EzPostgresConnection.class).getCopyAPI();
+        EzPostgresRowWriter writer = copyManager.copyInRows("copy_out_test", "id");
+        writer.writeRow(new Visibility().setFormalVisibility("U"), 1);
+        writer.writeRow(new Visibility().setFormalVisibility("TS"), 2);
+        writer.endCopy();
+        st.close();
+
+        // The table form would skip the visibility filter, so it must be rewritten to the query form
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, copyManager.copyOut("copy copy_out_test (id) to stdout", out));
+        assertEquals("1\n", out.toString("UTF-8"));
+
+        // A second statement would run unfiltered, so it is rejected before anything is exported
+        out.reset();
+        try {
+            copyManager.copyOut("copy copy_out_test (id) to stdout; copy copy_out_test to stdout", out);
+            fail("Expected a second statement to be rejected");
+        } catch (SQLException e) {
+            assertEquals(0, out.size());
+        }
+
+        out.reset();
+        assertEquals(1, copyManager.copyOutQuery("select id from copy_out_test", EzPostgresCopyManager.Format.CSV,
+                Channels.newChannel(out)));
+        assertEquals("1\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testBatchRewrite() throws SQLException, TException {
+        String securityId = new EzBakeApplicationConfigurationHelper(properties).getSecurityID();
+        EzSecurityToken explicitToken = ThriftTestUtils.generateTestSecurityToken(
+                securityId, securityId, Arrays.asList("U"));
+
+        properties.setProperty("ezbakeTokenProvider", "ezbake.data.postgres.ExplicitTokenProvider");
+        properties.setProperty("ezbakeToken", ThriftUtils.serializeToBase64(explicitToken));
+        properties.setProperty("ezbakeBatchRewriteRows", "2");
+
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+
+        Statement st = connection.createStatement();
+        st.execute("create temporary table batch_test (id int, visibility varchar);");
+
+        String visibility = ThriftUtils.serializeToBase64(new Visibility().setFormalVisibility("U"));
+        PreparedStatement ps = connection.prepareStatement("insert into batch_test (id, visibility) values (?, ?)");
+        for (int i = 1; i <= 3; i++) {
+            ps.setInt(1, i);
+            ps.setString(2, visibility);
+            ps.addBatch();
+        }
+
+        // One two-row statement and one single-row statement
+        assertTrue(Arrays.equals(new int[] {1, 1, 1}, ps.executeBatch()));
+        ps.close();
+
+        ResultSet rs = st.executeQuery("select count(*) from batch_test;");
+        assertTrue(rs.next());
+        assertEquals(3, rs.getInt(1));
+        rs.close();
+        st.close();
+
+        assertCurrentTokenSettingEquals(explicitToken);
+    }
+
     private void assertCurrentTokenSettingEquals(EzSecurityToken expected) throws SQLException, TException {
         Statement st = null;
         ResultSet rs = null;
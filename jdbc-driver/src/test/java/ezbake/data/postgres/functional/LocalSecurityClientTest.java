@@ -0,0 +1,114 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.functional;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.TokenType;
+import ezbake.configuration.ClasspathConfigurationLoader;
+import ezbake.configuration.EzConfiguration;
+import ezbake.configuration.EzConfigurationLoaderException;
+import ezbake.data.postgres.EzPostgresDriver;
+import ezbake.data.postgres.LocalSecurityClient;
+import ezbake.thrift.ThriftUtils;
+import ezbakehelpers.ezconfigurationhelpers.application.EzBakeApplicationConfigurationHelper;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the driver against {@link LocalSecurityClient} instead of the EzBake security service, so only PostgreSQL is
+ * needed. Any functional test can do the same by setting <code>ezbakeSecurityClient</code> as these do.
+ */
+public class LocalSecurityClientTest {
+
+    private Properties properties;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws EzConfigurationLoaderException {
+        properties = new EzConfiguration(new ClasspathConfigurationLoader()).getProperties();
+        properties.setProperty("user", properties.getProperty("postgres.username"));
+        properties.setProperty("password", properties.getProperty("postgres.password"));
+        properties.setProperty(EzPostgresDriver.EZBAKE_SECURITY_CLIENT_PROPERTY, LocalSecurityClient.class.getName());
+        properties.setProperty(LocalSecurityClient.AUTHORIZATIONS_PROPERTY, "U,S");
+
+        connection = null;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    @Test
+    public void testApplicationToken() throws SQLException, TException {
+        properties.setProperty(EzPostgresDriver.EZBAKE_TOKEN_PROVIDER_PROPERTY,
+                "ezbake.data.postgres.ApplicationTokenProvider");
+        connect();
+
+        EzSecurityToken token = getCurrentTokenSetting();
+        assertEquals(TokenType.APP, token.getType());
+        assertEquals(new EzBakeApplicationConfigurationHelper(properties).getSecurityID(),
+                token.getValidity().getIssuedTo());
+        assertEquals(new TreeSet<String>(Arrays.asList("U", "S")),
+                token.getAuthorizations().getFormalAuthorizations());
+    }
+
+    @Test
+    public void testUserToken() throws SQLException, TException {
+        properties.setProperty(LocalSecurityClient.USER_PROPERTY, "CN=Laptop User");
+        connect();
+
+        EzSecurityToken token = getCurrentTokenSetting();
+        assertEquals(TokenType.USER, token.getType());
+        assertEquals("CN=Laptop User", token.getTokenPrincipal().getPrincipal());
+    }
+
+    private void connect() throws SQLException {
+        connection = DriverManager.getConnection(
+                String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                        properties.getProperty("postgres.host"),
+                        properties.getProperty("postgres.port"),
+                        properties.getProperty("postgres.db")),
+                properties);
+    }
+
+    private EzSecurityToken getCurrentTokenSetting() throws SQLException, TException {
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("select current_setting('ezbake.token');");
+            assertTrue(rs.next());
+            return ThriftUtils.deserializeFromBase64(EzSecurityToken.class, rs.getString(1));
+        } finally {
+            st.close();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.postgres.functional;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.Visibility;
+import ezbake.configuration.ClasspathConfigurationLoader;
+import ezbake.configuration.EzConfiguration;
+import ezbake.thrift.ThriftTestUtils;
+import ezbake.thrift.ThriftUtils;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Macro benchmark of the visibility filter. Creates a synthetic table of rows marked with generated visibilities, runs
+ * a read, write or mixed workload against it through the driver, and reports throughput, latency percentiles and the
+ * cost the filter adds to each row scanned. It is left out of the functional test run and only runs when named with
+ * <code>-Dtest</code>.
+ * <p />
+ * The benchmark is configured by these system properties, passed for example as
+ * <code>mvn test -DskipTests=false -Dtest=VisibilityBenchmarkTest -Dvisibility.benchmark.rows=1000000</code>:
+ * <ul>
+ *     <li><code>visibility.benchmark.rows</code> - rows in the table (default 10000)</li>
+ *     <li><code>visibility.benchmark.labels</code> - distinct labels visibilities are made of (default 8)</li>
+ *     <li><code>visibility.benchmark.visibilities</code> - distinct visibility strings (default 16)</li>
+ *     <li><code>visibility.benchmark.distribution</code> - how visibilities are spread over rows, <code>uniform</code>
+ *     or <code>zipf</code> (default uniform)</li>
+ *     <li><code>visibility.benchmark.authorizations</code> - labels the token is authorized for (default 4)</li>
+ *     <li><code>visibility.benchmark.workload</code> - <code>read</code>, <code>write</code> or <code>mixed</code>
+ *     (default mixed)</li>
+ *     <li><code>visibility.benchmark.readFraction</code> - fraction of reads in the mixed workload (default 0.9)</li>
+ *     <li><code>visibility.benchmark.scanRows</code> - rows in the id range each read selects (default 100)</li>
+ *     <li><code>visibility.benchmark.operations</code> - operations each thread runs (default 1000)</li>
+ *     <li><code>visibility.benchmark.threads</code> - concurrent connections (default 1)</li>
+ *     <li><code>visibility.benchmark.seed</code> - seed of the generated data (default 42)</li>
+ *     <li><code>visibility.benchmark.output</code> - file to save the results to</li>
+ *     <li><code>visibility.benchmark.baseline</code> - results file of an earlier run to compare against</li>
+ *     <li><code>visibility.benchmark.maxRegression</code> - percentage any result may be worse than the baseline before
+ *     the test fails (default unlimited)</li>
+ * </ul>
+ * The per-row filter cost is found by timing a full scan of the table against a scan of an identical copy whose
+ * visibility column has another name, so that the filter doesn't apply to it.
+ * <p />
+ * Results are logged for reading; tools comparing runs should read the file saved with
+ * <code>visibility.benchmark.output</code> instead.
+ */
+public class VisibilityBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(VisibilityBenchmarkTest.class);
+
+    private static final String PREFIX = "visibility.benchmark.";
+
+    private static final String TABLE = "visibility_benchmark";
+    private static final String CONTROL_TABLE = "visibility_benchmark_control";
+
+    /** Results that are better when higher; all others are better when lower */
+    private static final Set<String> HIGHER_IS_BETTER = new TreeSet<String>(Arrays.asList("throughput"));
+
+    /** Results that describe the run rather than measure it */
+    private static final Set<String> INFORMATIONAL = new TreeSet<String>(Arrays.asList("visibleFraction"));
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int FILTER_ROUNDS = 5;
+
+    private final int rows = Integer.getInteger(PREFIX + "rows", 10000);
+    private final int labels = Integer.getInteger(PREFIX + "labels", 8);
+    private final int visibilities = Integer.getInteger(PREFIX + "visibilities", 16);
+    private final String distribution = System.getProperty(PREFIX + "distribution", "uniform");
+    private final int authorizations = Integer.getInteger(PREFIX + "authorizations", 4);
+    private final String workload = System.getProperty(PREFIX + "workload", "mixed");
+    private final double readFraction = Double.parseDouble(System.getProperty(PREFIX + "readFraction", "0.9"));
+    private final int scanRows = Integer.getInteger(PREFIX + "scanRows", 100);
+    private final int operations = Integer.getInteger(PREFIX + "operations", 1000);
+    private final int threads = Integer.getInteger(PREFIX + "threads", 1);
+    private final long seed = Long.getLong(PREFIX + "seed", 42);
+
+    private Properties properties;
+    private String url;
+    private List<String> visibilityValues;
+    private double[] visibilityWeights;
+    private final AtomicLong nextId = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        properties = new EzConfiguration(new ClasspathConfigurationLoader()).getProperties();
+        properties.setProperty("user", properties.getProperty("postgres.username"));
+        properties.setProperty("password", properties.getProperty("postgres.password"));
+
+        List<String> tokenAuthorizations = new ArrayList<String>();
+        for (int i = 0; i < authorizations; i++) {
+            tokenAuthorizations.add(label(i));
+        }
+        EzSecurityToken token = ThriftTestUtils.generateTestSecurityToken("id", "id", tokenAuthorizations);
+        properties.setProperty("ezbakeTokenProvider", "ezbake.data.postgres.ExplicitTokenProvider");
+        properties.setProperty("ezbakeToken", ThriftUtils.serializeToBase64(token));
+
+        url = String.format("jdbc:ezbake:postgresql://%s:%s/%s",
+                properties.getProperty("postgres.host"),
+                properties.getProperty("postgres.port"),
+                properties.getProperty("postgres.db"));
+
+        generateVisibilities(new Random(seed));
+
+        Connection connection = DriverManager.getConnection(url, properties);
+        try {
+            createTables(connection);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, properties);
+        try {
+            Statement st = connection.createStatement();
+            st.execute(String.format("drop table if exists %s, %s;", TABLE, CONTROL_TABLE));
+            st.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testWorkload() throws Exception {
+        Properties results = new Properties();
+
+        Connection connection = DriverManager.getConnection(url, properties);
+        try {
+            measureFilterCost(connection, results);
+        } finally {
+            connection.close();
+        }
+
+        runWorkload(results);
+
+        report(results);
+
+        String output = System.getProperty(PREFIX + "output");
+        if (output != null) {
+            OutputStream out = new FileOutputStream(output);
+            try {
+                results.store(out, String.format(
+                        "%s rows, %s labels, %s %s visibilities, %s authorizations, %s workload",
+                        rows, labels, visibilities, distribution, authorizations, workload));
+            } finally {
+                out.close();
+            }
+        }
+
+        String baseline = System.getProperty(PREFIX + "baseline");
+        if (baseline != null) {
+            compare(loadResults(baseline), results);
+        }
+    }
+
+    /**
+     * Generate the distinct visibilities rows are marked with. The first are single labels, the rest conjunctions or
+     * disjunctions of two or three labels.
+     */
+    private void generateVisibilities(Random random) throws TException {
+        Set<String> expressions = new LinkedHashSet<String>();
+        for (int i = 0; i < labels && expressions.size() < visibilities; i++) {
+            expressions.add(label(i));
+        }
+
+        int attempts = 0;
+        while (expressions.size() < visibilities && attempts++ < visibilities * 100) {
+            String operator = random.nextBoolean() ? "&" : "|";
+            StringBuilder expression = new StringBuilder(label(random.nextInt(labels)));
+            for (int terms = 1 + random.nextInt(2); terms > 0; terms--) {
+                expression.append(operator).append(label(random.nextInt(labels)));
+            }
+            expressions.add(expression.toString());
+        }
+
+        visibilityValues = new ArrayList<String>();
+        for (String expression : expressions) {
+            visibilityValues.add(ThriftUtils.serializeToBase64(new Visibility().setFormalVisibility(expression)));
+        }
+
+        visibilityWeights = new double[visibilityValues.size()];
+        double total = 0;
+        for (int i = 0; i < visibilityWeights.length; i++) {
+            total += "zipf".equals(distribution) ? 1.0 / (i + 1) : 1.0;
+            visibilityWeights[i] = total;
+        }
+        for (int i = 0; i < visibilityWeights.length; i++) {
+            visibilityWeights[i] /= total;
+        }
+    }
+
+    private String nextVisibility(Random random) {
+        int i = Arrays.binarySearch(visibilityWeights, random.nextDouble());
+        return visibilityValues.get(Math.min(i < 0 ? -i - 1 : i, visibilityValues.size() - 1));
+    }
+
+    private void createTables(Connection connection) throws SQLException {
+        Statement st = connection.createStatement();
+        st.execute(String.format("drop table if exists %s, %s;", TABLE, CONTROL_TABLE));
+        st.execute(String.format(
+                "create table %s (id int8 primary key, payload varchar, visibility varchar);", TABLE));
+        st.execute(String.format(
+                "create table %s (id int8 primary key, payload varchar, vis varchar);", CONTROL_TABLE));
+        st.close();
+
+        Random random = new Random(seed);
+        connection.setAutoCommit(false);
+        PreparedStatement insert = connection.prepareStatement(
+                String.format("insert into %s values (?, ?, ?);", TABLE));
+        PreparedStatement controlInsert = connection.prepareStatement(
+                String.format("insert into %s values (?, ?, ?);", CONTROL_TABLE));
+        for (int id = 0; id < rows; id++) {
+            String payload = Long.toHexString(random.nextLong());
+            String visibility = nextVisibility(random);
+            for (PreparedStatement ps : new PreparedStatement[] {insert, controlInsert}) {
+                ps.setLong(1, id);
+                ps.setString(2, payload);
+                ps.setString(3, visibility);
+                ps.addBatch();
+            }
+
+            if ((id + 1) % BATCH_SIZE == 0) {
+                insert.executeBatch();
+                controlInsert.executeBatch();
+            }
+        }
+        insert.executeBatch();
+        controlInsert.executeBatch();
+        insert.close();
+        controlInsert.close();
+        connection.commit();
+        connection.setAutoCommit(true);
+
+        st = connection.createStatement();
+        st.execute(String.format("analyze %s;", TABLE));
+        st.execute(String.format("analyze %s;", CONTROL_TABLE));
+        st.close();
+
+        nextId.set(rows);
+    }
+
+    /**
+     * Time full scans of the filtered table and its unfiltered copy, keeping the fastest of several rounds of each.
+     */
+    private void measureFilterCost(Connection connection, Properties results) throws SQLException {
+        Statement st = connection.createStatement();
+        long filteredNanos = Long.MAX_VALUE;
+        long controlNanos = Long.MAX_VALUE;
+        long visible = 0;
+        for (int round = 0; round <= FILTER_ROUNDS; round++) {
+            long start = System.nanoTime();
+            visible = count(st, TABLE);
+            long filtered = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            count(st, CONTROL_TABLE);
+            long control = System.nanoTime() - start;
+
+            // The first round only warms the caches
+            if (round > 0) {
+                filteredNanos = Math.min(filteredNanos, filtered);
+                controlNanos = Math.min(controlNanos, control);
+            }
+        }
+        st.close();
+
+        results.setProperty("visibleFraction", Double.toString((double) visible / rows));
+        results.setProperty("filterNanosPerRow", Double.toString((double) (filteredNanos - controlNanos) / rows));
+        results.setProperty("filteredScanMillis", Double.toString(filteredNanos / 1e6));
+        results.setProperty("unfilteredScanMillis", Double.toString(controlNanos / 1e6));
+    }
+
+    private long count(Statement st, String table) throws SQLException {
+        // Count a column so that neither scan can be answered from the primary key index alone
+        ResultSet rs = st.executeQuery(String.format("select count(payload) from %s;", table));
+        assertTrue(rs.next());
+        long count = rs.getLong(1);
+        rs.close();
+
+        return count;
+    }
+
+    private void runWorkload(Properties results) throws Exception {
+        final double reads;
+        if ("read".equals(workload)) {
+            reads = 1;
+        } else if ("write".equals(workload)) {
+            reads = 0;
+        } else if ("mixed".equals(workload)) {
+            reads = readFraction;
+        } else {
+            throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(seed + t + 1);
+            futures.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws SQLException {
+                    return runOperations(random, reads);
+                }
+            }));
+        }
+
+        long[] latencies = new long[threads * operations];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(futures.get(t).get(), 0, latencies, t * operations, operations);
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        Arrays.sort(latencies);
+        results.setProperty("throughput", Double.toString(latencies.length / (elapsed / 1e9)));
+        results.setProperty("p50Micros", Double.toString(percentile(latencies, 0.50)));
+        results.setProperty("p90Micros", Double.toString(percentile(latencies, 0.90)));
+        results.setProperty("p99Micros", Double.toString(percentile(latencies, 0.99)));
+        results.setProperty("p999Micros", Double.toString(percentile(latencies, 0.999)));
+        results.setProperty("maxMicros", Double.toString(latencies[latencies.length - 1] / 1e3));
+    }
+
+    /**
+     * Run one thread's share of the workload on its own connection.
+     *
+     * @return latency of each operation in nanoseconds
+     */
+    private long[] runOperations(Random random, double reads) throws SQLException {
+        long[] latencies = new long[operations];
+
+        Connection connection = DriverManager.getConnection(url, properties);
+        try {
+            PreparedStatement select = connection.prepareStatement(
+                    String.format("select id, payload from %s where id >= ? and id < ?;", TABLE));
+            PreparedStatement insert = connection.prepareStatement(
+                    String.format("insert into %s values (?, ?, ?);", TABLE));
+
+            for (int i = 0; i < operations; i++) {
+                boolean read = random.nextDouble() < reads;
+                long from = random.nextInt(Math.max(1, rows - scanRows));
+                String visibility = nextVisibility(random);
+
+                long start = System.nanoTime();
+                if (read) {
+                    select.setLong(1, from);
+                    select.setLong(2, from + scanRows);
+                    ResultSet rs = select.executeQuery();
+                    while (rs.next()) {
+                        rs.getString(2);
+                    }
+                    rs.close();
+                } else {
+                    insert.setLong(1, nextId.getAndIncrement());
+                    insert.setString(2, Long.toHexString(random.nextLong()));
+                    insert.setString(3, visibility);
+                    insert.executeUpdate();
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            select.close();
+            insert.close();
+        } finally {
+            connection.close();
+        }
+
+        return latencies;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e3;
+    }
+
+    private void report(Properties results) {
+        logger.info("Visibility benchmark: {} rows, {} labels, {} {} visibilities, {} authorizations, {} workload, "
+                + "{} threads x {} operations",
+                rows, labels, visibilityValues.size(), distribution, authorizations, workload, threads, operations);
+        for (String name : new TreeSet<String>(results.stringPropertyNames())) {
+            logger.info(String.format("  %-22s %12.3f", name, Double.parseDouble(results.getProperty(name))));
+        }
+    }
+
+    private static Properties loadResults(String path) throws IOException {
+        Properties results = new Properties();
+        InputStream in = new FileInputStream(path);
+        try {
+            results.load(in);
+        } finally {
+            in.close();
+        }
+
+        return results;
+    }
+
+    /**
+     * Log how each result changed from the baseline, and fail if any got worse by more than the allowed regression.
+     */
+    private static void compare(Properties baseline, Properties results) {
+        String maxRegressionProperty = System.getProperty(PREFIX + "maxRegression");
+        double maxRegression = maxRegressionProperty == null
+                ? Double.POSITIVE_INFINITY : Double.parseDouble(maxRegressionProperty);
+
+        List<String> regressions = new ArrayList<String>();
+        logger.info("Compared to baseline:");
+        for (String name : new TreeSet<String>(results.stringPropertyNames())) {
+            if (baseline.getProperty(name) == null) {
+                continue;
+            }
+
+            double before = Double.parseDouble(baseline.getProperty(name));
+            double after = Double.parseDouble(results.getProperty(name));
+            double change = before == 0 ? 0 : (after - before) / Math.abs(before) * 100;
+            double regression = HIGHER_IS_BETTER.contains(name) ? -change : change;
+            logger.info(String.format("  %-22s %12.3f -> %12.3f (%+.1f%%)", name, before, after, change));
+
+            if (!INFORMATIONAL.contains(name) && regression > maxRegression) {
+                regressions.add(String.format("%s %+.1f%%", name, change));
+            }
+        }
+
+        assertTrue("Regressed from baseline: " + regressions, regressions.isEmpty());
+    }
+
+    private static String label(int i) {
+        return "L" + i;
+    }
+}
@@ -13,7 +13,9 @@
  * limitations under the License. */
 
 #include "postgres.h"
+#include "libpq/md5.h"
 #include "utils/array.h"
+#include "utils/builtins.h"
 #include "utils/guc.h"
 
 #include "ezbake_purge.h"
@@ -22,6 +24,36 @@
 
 #define EZBAKE_TOKEN_SETTING "ezbake.token"
 
+/*
+ * Tokens registered with register_token() are referred to by a handle instead
+ * of the serialized token. Handles can't be mistaken for base64, which has no
+ * ':'.
+ */
+#define TOKEN_HANDLE_PREFIX "handle:"
+#define TOKEN_HANDLE_PREFIX_LEN (sizeof(TOKEN_HANDLE_PREFIX) - 1)
+#define TOKEN_HANDLE_LEN (TOKEN_HANDLE_PREFIX_LEN + 32)
+#define TOKEN_REGISTRY_MAX 1024
+
+/*
+ * A token registered in this backend, kept decoded so that checking a row
+ * doesn't deserialize the token again.
+ */
+typedef struct {
+    char handle[TOKEN_HANDLE_LEN + 1];
+    token_handle_t *token;
+    authorizations_handle_t *auths;
+} registered_token_t;
+
+/*
+ * Per-backend token registry. Each connection has its own backend, so the
+ * client that registers tokens is the only one that can see them. The client
+ * decides when to empty it (see register_token) so that it always knows which
+ * handles are valid.
+ */
+static registered_token_t token_registry[TOKEN_REGISTRY_MAX];
+static size_t token_registry_size = 0;
+static registered_token_t *last_registered_token = NULL;
+
 char *dup_pg_varchar(const VarChar * const pg_varchar) {
     size_t len = VARSIZE(pg_varchar) - VARHDRSZ;
     char *dup = malloc(len + 1); /* Must add NULL-terminator */
@@ -70,6 +102,141 @@ authorizations_handle_t *deserialize_auths(
     return auths;
 }
 
+/*
+ * Returns true if the user's auths grant full access to the row visibility.
+ */
+bool auths_can_access(authorizations_handle_t *auths,
+        const VarChar * const vis_base64) {
+    visibility_handle_t *vis = deserialize_vis(vis_base64);
+    if (!vis) {
+        ereport(ERROR,
+                (errmsg("There was an error deserializing the visibility!")));
+
+        return false;
+    }
+
+    char *error = NULL;
+    uint32_t permissions = ezbake_get_user_permissions(auths, vis, &error);
+    ezbake_visibility_handle_free(vis);
+    if (error) {
+        char *message = pstrdup(error);
+        free(error);
+        ereport(ERROR, (errmsg("Error evaluating permissions: %s", message)));
+
+        return false;
+    }
+
+    return (permissions & EZBAKE_USER_PERM_READ) &&
+        (permissions & EZBAKE_USER_PERM_WRITE) &&
+        (permissions & EZBAKE_USER_PERM_MANAGE_VISIBILITY);
+}
+
+registered_token_t *find_registered_token(const char * const handle) {
+    if (last_registered_token &&
+            strcmp(last_registered_token->handle, handle) == 0) {
+        return last_registered_token;
+    }
+
+    size_t i;
+    for (i = 0; i < token_registry_size; i++) {
+        if (strcmp(token_registry[i].handle, handle) == 0) {
+            last_registered_token = &token_registry[i];
+            return last_registered_token;
+        }
+    }
+
+    return NULL;
+}
+
+void clear_token_registry(void) {
+    size_t i;
+    for (i = 0; i < token_registry_size; i++) {
+        ezbake_authorizations_handle_free(token_registry[i].auths);
+        ezbake_token_handle_free(token_registry[i].token);
+    }
+
+    token_registry_size = 0;
+    last_registered_token = NULL;
+}
+
+/*
+ * Registers a serialized security token in this backend and returns a short
+ * handle for it. Setting ezbake.token to the handle is then equivalent to
+ * setting it to the token, without sending or decoding the token again. If the
+ * second argument is true, all previously registered tokens are forgotten
+ * first.
+ */
+PG_FUNCTION_INFO_V1(register_token);
+Datum register_token(PG_FUNCTION_ARGS) {
+    VarChar *token_varchar = PG_GETARG_VARCHAR_P(0);
+    bool reset = PG_GETARG_BOOL(1);
+
+    if (reset) {
+        clear_token_registry();
+    }
+
+    char *token_base64 = dup_pg_varchar(token_varchar);
+    char handle[TOKEN_HANDLE_LEN + 1];
+    strcpy(handle, TOKEN_HANDLE_PREFIX);
+    if (!pg_md5_hash(token_base64, strlen(token_base64),
+                handle + TOKEN_HANDLE_PREFIX_LEN)) {
+        free(token_base64);
+        ereport(ERROR, (errmsg("Could not hash the security token")));
+
+        PG_RETURN_NULL();
+    }
+
+    if (find_registered_token(handle)) {
+        free(token_base64);
+        PG_RETURN_VARCHAR_P((VarChar *) cstring_to_text(handle));
+    }
+
+    if (token_registry_size >= TOKEN_REGISTRY_MAX) {
+        free(token_base64);
+        ereport(ERROR,
+                (errmsg("Security token registry is full; register with "
+                        "reset to empty it")));
+
+        PG_RETURN_NULL();
+    }
+
+    char *error = NULL;
+    token_handle_t *token =
+        ezbake_deserialize_token_base64(token_base64, &error);
+    free(token_base64);
+
+    if (error) {
+        char *message = pstrdup(error);
+        free(error);
+        ereport(ERROR,
+                (errmsg("Error deserializing the security token: %s",
+                        message)));
+
+        PG_RETURN_NULL();
+    }
+
+    authorizations_handle_t *auths =
+        ezbake_get_authorizations_from_token(token, &error);
+
+    if (error) {
+        char *message = pstrdup(error);
+        ezbake_token_handle_free(token);
+        free(error);
+        ereport(ERROR,
+                (errmsg("Error extracting auths from security token: %s",
+                        message)));
+
+        PG_RETURN_NULL();
+    }
+
+    registered_token_t *registered = &token_registry[token_registry_size++];
+    strcpy(registered->handle, handle);
+    registered->token = token;
+    registered->auths = auths;
+
+    PG_RETURN_VARCHAR_P((VarChar *) cstring_to_text(handle));
+}
+
 /*
  * Returns true if the table row is visible given the user's auths.
  */
@@ -134,6 +301,20 @@ Datum verify_row_visible_current_setting(PG_FUNCTION_ARGS) {
         PG_RETURN_BOOL(false);
     }
 
+    if (strncmp(token_base64, TOKEN_HANDLE_PREFIX,
+                TOKEN_HANDLE_PREFIX_LEN) == 0) {
+        registered_token_t *registered = find_registered_token(token_base64);
+        if (!registered) {
+            ereport(ERROR,
+                    (errmsg("Security token handle %s is not registered in "
+                            "this session", token_base64)));
+
+            PG_RETURN_BOOL(false);
+        }
+
+        PG_RETURN_BOOL(auths_can_access(registered->auths, vis_base64));
+    }
+
     char *error = NULL;
     token_handle_t *token =
         ezbake_deserialize_token_base64(token_base64, &error);
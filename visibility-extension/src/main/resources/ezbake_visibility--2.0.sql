@@ -12,3 +12,6 @@ CREATE OR REPLACE FUNCTION verify_row_visible(VARCHAR, VARCHAR) RETURNS BOOLEAN
 
 CREATE OR REPLACE FUNCTION verify_row_visible_current_setting(VARCHAR) RETURNS BOOLEAN
      AS 'ezbake_visibility', 'verify_row_visible_current_setting' LANGUAGE C STRICT;
+
+CREATE OR REPLACE FUNCTION register_token(VARCHAR, BOOLEAN) RETURNS VARCHAR
+     AS 'ezbake_visibility', 'register_token' LANGUAGE C STRICT;